@@ -0,0 +1,252 @@
+// Template index that scores every template at a low resolution first, and only the best of them at full resolution
+// Each template is also kept at a few lower resolutions (8, 16 and 32 points by default), made by taking every
+// n-th point of the normalised template. A search scores all templates with the $1 path distance at the lowest
+// resolution, keeps the best keepFraction of them, scores those at the next resolution and so on, and finally
+// scores what is left at full resolution with the engine's recognizer.
+// A template whose coarse distance is within tolerance (relative) of the cut off distance is kept as well, so
+// near ties are not decided on a handful of points. Raise keepFraction or tolerance for rankings closer to a full
+// scan, and check them with IndexEvaluation. dataTouched reports how much point data searches actually read.
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CoarseToFineIndex implements TemplateIndex
+{
+	int[] levelResolutions = {8, 16, 32}; // Lower resolutions to filter at, lowest first
+	float keepFraction = 0.25f;           // Share of the templates kept at each level
+	float tolerance = 0.05f;              // Templates this close (relative) to the cut off distance are kept too
+	
+	volatile Levels levels = new Levels(new int[0], 0);
+	
+	// Scratch space for the candidate at each level, one per thread as search is called from several threads
+	ThreadLocal<float[][]> queryPoints = new ThreadLocal<float[][]>();
+	
+	AtomicLong queries = new AtomicLong();
+	AtomicLong floatsRead = new AtomicLong();    // Point data read by searches
+	AtomicLong fullScanFloats = new AtomicLong(); // Point data a full scan would have read for the same searches
+	
+	public CoarseToFineIndex()
+	{
+	}
+	
+	public CoarseToFineIndex(int[] levelResolutions, float keepFraction, float tolerance)
+	{
+		this.levelResolutions = levelResolutions;
+		this.keepFraction = keepFraction;
+		this.tolerance = tolerance;
+	}
+	
+	public synchronized void build(GestureEngine engine)
+	{
+		TemplateStore store = engine.templateStore;
+		
+		// Only resolutions below the store's own are of any use
+		int levelCount = 0;
+		int[] resolutions = new int[levelResolutions.length];
+		for(int l=0; l<levelResolutions.length; l++)
+		{
+			if(levelResolutions[l] > 0 && levelResolutions[l] < store.resolution)
+			{
+				resolutions[levelCount++] = levelResolutions[l];
+			}
+		}
+		resolutions = Arrays.copyOf(resolutions, levelCount);
+		Arrays.sort(resolutions);
+		
+		Levels built = new Levels(resolutions, Math.max(store.size, 16));
+		for(int gt=0; gt<store.size; gt++)
+		{
+			built.set(store, gt);
+		}
+		built.size = store.size;
+		levels = built;
+	}
+	
+	public synchronized void templatesAdded(GestureEngine engine, int from)
+	{
+		levels = levels.withTemplates(engine.templateStore, from);
+	}
+	
+	public Object state()
+	{
+		return levels;
+	}
+	
+	public void search(TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking)
+	{
+		Levels current = (Levels)snapshot.indexState;
+		TemplateStore store = snapshot.store;
+		float[][] query = queryPoints(current);
+		
+		int size = Math.min(current.size, store.size); // Templates added since the snapshot are left for the next one
+		int[] survivors = new int[size];
+		int count = 0;
+		for(int gt=0; gt<size; gt++)
+		{
+			if(!store.isRemoved(gt))
+			{	// Removed templates are never candidates, so they can not crowd live ones out of a level
+				survivors[count++] = gt;
+			}
+		}
+		float[] distances = new float[count];
+		float[] selection = new float[count];
+		long read = 0;
+		
+		for(int l=0; l<current.resolutions.length; l++)
+		{
+			int keep = Math.max(ranking.capacity, (int)Math.ceil(count*keepFraction));
+			if(keep >= count)
+			{	// Too few templates left for this level to rule any out
+				continue;
+			}
+			
+			int levelStride = current.resolutions[l]*2;
+			float[] levelPoints = current.points[l];
+			Levels.subsample(candidate.points, 0, candidate.resolution, current.resolutions[l], query[l], 0);
+			
+			for(int s=0; s<count; s++)
+			{
+				distances[s] = PathDistanceRecognizer.pathDistance(query[l], levelPoints, survivors[s]*levelStride, levelStride, Float.POSITIVE_INFINITY);
+			}
+			read += (long)count*levelStride;
+			
+			System.arraycopy(distances, 0, selection, 0, count);
+			float maxDistance = select(selection, count, keep-1)*(1+tolerance);
+			int kept = 0;
+			for(int s=0; s<count; s++)
+			{
+				if(distances[s] <= maxDistance)
+				{
+					survivors[kept++] = survivors[s];
+				}
+			}
+			count = kept;
+		}
+		
+		snapshot.scanTemplates(candidate, survivors, count, ranking);
+		read += (long)count*store.stride;
+		
+		queries.incrementAndGet();
+		floatsRead.addAndGet(read);
+		fullScanFloats.addAndGet((long)Math.min(current.size, store.size)*store.stride);
+	}
+	
+	public float dataTouched()
+	{	// Point data read by searches so far, as a share (0 to 1) of what full scans would have read
+		long fullScan = fullScanFloats.get();
+		return fullScan == 0 ? 0 : floatsRead.get()/(float)fullScan;
+	}
+	
+	static float select(float[] values, int count, int rank)
+	{	// Returns the value that would be at rank if the first count values were sorted, reordering them on the way
+		int left = 0;
+		int right = count-1;
+		while(left < right)
+		{
+			float pivot = values[(left+right) >>> 1];
+			int i = left;
+			int j = right;
+			while(i <= j)
+			{
+				while(values[i] < pivot)
+				{
+					i++;
+				}
+				while(values[j] > pivot)
+				{
+					j--;
+				}
+				if(i <= j)
+				{
+					float value = values[i];
+					values[i] = values[j];
+					values[j] = value;
+					i++;
+					j--;
+				}
+			}
+			if(rank <= j)
+			{
+				right = j;
+			}
+			else if(rank >= i)
+			{
+				left = i;
+			}
+			else
+			{
+				return values[rank];
+			}
+		}
+		return values[rank];
+	}
+	
+	float[][] queryPoints(Levels current)
+	{
+		float[][] query = queryPoints.get();
+		if(query == null || query.length < current.resolutions.length)
+		{
+			query = new float[current.resolutions.length][];
+			queryPoints.set(query);
+		}
+		for(int l=0; l<current.resolutions.length; l++)
+		{
+			if(query[l] == null || query[l].length < current.resolutions[l]*2)
+			{
+				query[l] = new float[current.resolutions[l]*2];
+			}
+		}
+		return query;
+	}
+	
+	static class Levels
+	{	// Templates at every lower resolution, packed the same way as TemplateStore.points.
+		// Searches only read the first size templates, so a template can be written past them while searches run
+		int[] resolutions;
+		float[][] points;
+		int size;
+		
+		Levels(int[] resolutions, int capacity)
+		{
+			this.resolutions = resolutions;
+			points = new float[resolutions.length][];
+			for(int l=0; l<resolutions.length; l++)
+			{
+				points[l] = new float[capacity*resolutions[l]*2];
+			}
+		}
+		
+		void set(TemplateStore store, int index)
+		{
+			for(int l=0; l<resolutions.length; l++)
+			{
+				subsample(store.points(index), store.offset(index), store.resolution, resolutions[l], points[l], index*resolutions[l]*2);
+			}
+		}
+		
+		Levels withTemplates(TemplateStore store, int from)
+		{	// Adds the templates from the given one to the end of the store. Searches holding this state only read up to its size
+			Levels next = new Levels(resolutions, 0);
+			for(int l=0; l<resolutions.length; l++)
+			{
+				int required = store.size*resolutions[l]*2;
+				next.points[l] = (points[l].length < required) ? Arrays.copyOf(points[l], Math.max(required, points[l].length*2)) : points[l];
+			}
+			for(int gt=from; gt<store.size; gt++)
+			{
+				next.set(store, gt);
+			}
+			next.size = Math.max(size, store.size);
+			return next;
+		}
+		
+		static void subsample(float[] source, int offset, int resolution, int levelResolution, float[] target, int targetOffset)
+		{	// Takes levelResolution points spread evenly along the path, starting with the first
+			for(int p=0; p<levelResolution; p++)
+			{
+				int sourcePoint = p*resolution/levelResolution;
+				target[targetOffset + p*2]     = source[offset + sourcePoint*2];
+				target[targetOffset + p*2 + 1] = source[offset + sourcePoint*2 + 1];
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+// Compares the scalar path distance (PathDistanceRecognizer) with the vectorizable one (VectorizedPathRecognizer)
+// Usage: DistanceKernelBenchmark [template count] [rounds]
+// Scores random candidates against a store of random templates with both kernels, and prints the time per template
+// of each and the largest relative difference between their distances (the vectorizable kernel adds in a different
+// order, so the last bits may differ).
+import java.util.Random;
+
+public class DistanceKernelBenchmark
+{
+	public static void main(String[] args)
+	{
+		int templateCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		
+		Random random = new Random(1);
+		TemplateStore store = new TemplateStore(64, 100, templateCount);
+		for(int gt=0; gt<templateCount; gt++)
+		{
+			for(int f=0; f<store.stride; f++)
+			{
+				store.points[gt*store.stride + f] = random.nextFloat()*100-50;
+			}
+			store.names[gt] = "GESTURE_" + (gt%16);
+			store.classIds[gt] = store.classId(store.names[gt]);
+		}
+		store.size = templateCount;
+		
+		GesturePreprocessor candidate = new GesturePreprocessor(store.resolution, store.referenceSquareLength);
+		for(int f=0; f<store.stride; f++)
+		{
+			candidate.points[f] = random.nextFloat()*100-50;
+		}
+		
+		Recognizer[] kernels = {new PathDistanceRecognizer(), new VectorizedPathRecognizer()};
+		float[][] distances = new float[kernels.length][templateCount];
+		long[] nanos = new long[kernels.length];
+		
+		for(int k=0; k<kernels.length; k++)
+		{
+			store.setFeatureStride(kernels[k].featureStride(store));
+			for(int gt=0; gt<templateCount; gt++)
+			{
+				kernels[k].prepareTemplate(store, gt);
+			}
+			kernels[k].prepareCandidate(candidate);
+			
+			// The first rounds let the JIT compiler settle and are not timed
+			int warmUp = Math.max(rounds/5, 1);
+			for(int round=0; round<warmUp+rounds; round++)
+			{
+				long startTime = System.nanoTime();
+				for(int gt=0; gt<templateCount; gt++)
+				{
+					distances[k][gt] = kernels[k].distance(candidate, store, gt, Float.POSITIVE_INFINITY);
+				}
+				if(round >= warmUp)
+				{
+					nanos[k] += System.nanoTime()-startTime;
+				}
+			}
+		}
+		
+		double maxDifference = 0;
+		for(int gt=0; gt<templateCount; gt++)
+		{
+			maxDifference = Math.max(maxDifference, Math.abs(distances[0][gt]-distances[1][gt])/(double)distances[0][gt]);
+		}
+		
+		for(int k=0; k<kernels.length; k++)
+		{
+			System.out.println(kernels[k].getClass().getSimpleName() + ": " + (nanos[k]/(double)rounds/templateCount) + "ns per template");
+		}
+		System.out.println("Speedup " + (nanos[0]/(double)nanos[1]) + "x, largest relative difference in distance " + maxDifference);
+	}
+}
@@ -0,0 +1,216 @@
+// Template index that rules templates out on cheap features before any of them are scored point by point
+// Three features are kept per template, all taken from data the store already has:
+//   path length   length of the normalised path, relative to the reference square
+//   aspect ratio  width over height of the raw stroke (from the scale factors), as a logarithm so that it is symmetric
+//   angle         indicative angle, the direction from the centroid to the first point
+// Templates are kept sorted by path length, so the ones within lengthTolerance of the candidate are found with a
+// binary search, and only those whose aspect ratio and angle are also within tolerance get scored. A feature that
+// is not finite for either gesture (a stroke with no width or height) never rules a template out.
+// The absolute size in the scale factors is left out on purpose, as $1 matching does not depend on it. The angle
+// assumes gestures are drawn the same way round as their templates, set angleTolerance to PI if they are not.
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FeatureFilterIndex implements TemplateIndex
+{
+	float lengthTolerance = 0.25f;            // Largest relative difference in path length
+	float aspectTolerance = (float)Math.log(3); // Largest difference in log aspect ratio, a factor of 3 by default
+	float angleTolerance = (float)Math.PI/2;  // Largest difference in indicative angle (in radians), PI turns it off
+	
+	volatile SortedFeatures sorted = new SortedFeatures(0);
+	
+	// Scratch space for the templates that pass the filters, one per thread as search is called from several threads
+	ThreadLocal<int[]> survivorBuffers = new ThreadLocal<int[]>();
+	
+	AtomicLong queries = new AtomicLong();
+	AtomicLong templatesConsidered = new AtomicLong();
+	AtomicLong templatesPruned = new AtomicLong();
+	
+	public FeatureFilterIndex()
+	{
+	}
+	
+	public FeatureFilterIndex(float lengthTolerance, float aspectTolerance, float angleTolerance)
+	{
+		this.lengthTolerance = lengthTolerance;
+		this.aspectTolerance = aspectTolerance;
+		this.angleTolerance = angleTolerance;
+	}
+	
+	public synchronized void build(GestureEngine engine)
+	{
+		sorted = sortFeatures(engine.templateStore, 0);
+	}
+	
+	public synchronized void templatesAdded(GestureEngine engine, int from)
+	{	// Only the new templates are measured and sorted, then merged into the sorted features in one pass
+		sorted = merge(sorted, sortFeatures(engine.templateStore, from));
+	}
+	
+	public Object state()
+	{
+		return sorted;
+	}
+	
+	public void search(TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking)
+	{
+		SortedFeatures features = (SortedFeatures)snapshot.indexState;
+		
+		float length = pathLength(candidate.points, 0, candidate.resolution, candidate.referenceSquareLength);
+		float aspect = logAspect(candidate.scaleX, candidate.scaleY);
+		float angle = candidate.indicativeAngle;
+		
+		// Binary search the first template that is not too short, then walk until templates get too long
+		int first = Arrays.binarySearch(features.lengths, 0, features.size, length*(1-lengthTolerance));
+		first = (first < 0) ? -first-1 : first;
+		while(first > 0 && features.lengths[first-1] >= length*(1-lengthTolerance))
+		{	// binarySearch does not say which of several equal lengths it found
+			first--;
+		}
+		float maxLength = length*(1+lengthTolerance);
+		
+		int[] survivors = survivors(features.size);
+		int survivorCount = 0;
+		for(int s=first; s<features.size && features.lengths[s] <= maxLength; s++)
+		{
+			if(withinTolerance(aspect, features.aspects[s], aspectTolerance) && withinAngle(angle, features.angles[s]))
+			{
+				survivors[survivorCount++] = features.templates[s];
+			}
+		}
+		
+		if(survivorCount == 0)
+		{	// Nothing looks alike on the cheap features, so fall back to scoring everything rather than answering nothing
+			snapshot.scanTemplates(candidate, 0, snapshot.store.size, ranking);
+		}
+		else
+		{
+			// Survivors are in path length order, the ranking breaks ties by template index so this does not change the result
+			snapshot.scanTemplates(candidate, survivors, survivorCount, ranking);
+			templatesPruned.addAndGet(features.size-survivorCount);
+		}
+		queries.incrementAndGet();
+		templatesConsidered.addAndGet(features.size);
+	}
+	
+	public float prunedFraction()
+	{	// Share of templates (0 to 1) ruled out before scoring, over every search so far
+		long considered = templatesConsidered.get();
+		return considered == 0 ? 0 : templatesPruned.get()/(float)considered;
+	}
+	
+	public void printStatistics()
+	{
+		System.out.println(queries.get() + " searches, " + templatesPruned.get() + " of " + templatesConsidered.get() + " templates pruned (" + (prunedFraction()*100) + "%)");
+	}
+	
+	int[] survivors(int size)
+	{
+		int[] survivors = survivorBuffers.get();
+		if(survivors == null || survivors.length < size)
+		{
+			survivors = new int[Math.max(size, 16)];
+			survivorBuffers.set(survivors);
+		}
+		return survivors;
+	}
+	
+	boolean withinAngle(float angleA, float angleB)
+	{	// Angles are compared the short way round the circle
+		float difference = Math.abs(angleA-angleB) % (float)(Math.PI*2);
+		difference = Math.min(difference, (float)(Math.PI*2)-difference);
+		return difference <= angleTolerance;
+	}
+	
+	static boolean withinTolerance(float a, float b, float tolerance)
+	{
+		if(Float.isNaN(a) || Float.isInfinite(a) || Float.isNaN(b) || Float.isInfinite(b))
+		{
+			return true;
+		}
+		return Math.abs(a-b) <= tolerance;
+	}
+	
+	static SortedFeatures sortFeatures(TemplateStore store, int from)
+	{	// Features of the templates from the given one to the end of the store, sorted by path length
+		int size = store.size-from;
+		long[] keys = new long[size];
+		float[] lengths = new float[size];
+		for(int t=0; t<size; t++)
+		{
+			int gt = from+t;
+			lengths[t] = pathLength(store.points(gt), store.offset(gt), store.resolution, store.referenceSquareLength);
+			// Path lengths are never negative, so their float bits sort in the same order as the lengths themselves
+			keys[t] = ((long)Float.floatToIntBits(lengths[t]) << 32) | gt;
+		}
+		Arrays.sort(keys);
+		
+		SortedFeatures features = new SortedFeatures(size);
+		for(int s=0; s<size; s++)
+		{
+			int gt = (int)keys[s];
+			features.set(s, gt, lengths[gt-from], store);
+		}
+		return features;
+	}
+	
+	static SortedFeatures merge(SortedFeatures existing, SortedFeatures added)
+	{	// Merges two sorted sets of features. Added templates come after the existing ones in the store, so on equal
+		// lengths the existing ones go first, the same order a full sort would give
+		SortedFeatures merged = new SortedFeatures(existing.size + added.size);
+		int e = 0;
+		int a = 0;
+		for(int s=0; s<merged.size; s++)
+		{
+			boolean fromExisting = (a == added.size) || (e < existing.size && Float.floatToIntBits(existing.lengths[e]) <= Float.floatToIntBits(added.lengths[a]));
+			SortedFeatures source = fromExisting ? existing : added;
+			int position = fromExisting ? e++ : a++;
+			merged.templates[s] = source.templates[position];
+			merged.lengths[s] = source.lengths[position];
+			merged.aspects[s] = source.aspects[position];
+			merged.angles[s] = source.angles[position];
+		}
+		return merged;
+	}
+	
+	static float pathLength(float[] points, int offset, int resolution, float referenceSquareLength)
+	{
+		double length = 0;
+		for(int p=1; p<resolution; p++)
+		{
+			length += GesturePreprocessor.distDouble(points[offset + p*2 - 2], points[offset + p*2 - 1], points[offset + p*2], points[offset + p*2 + 1]);
+		}
+		return (float)(length/referenceSquareLength);
+	}
+	
+	static float logAspect(float scaleX, float scaleY)
+	{	// Scale factors are the reference length over width and height, so their ratio is the stroke's width over its height
+		return (float)Math.log(scaleY/scaleX);
+	}
+	
+	static class SortedFeatures
+	{	// Features of every template, sorted by path length. Replaced as a whole so searches always see a matching set
+		int size;
+		int[] templates;
+		float[] lengths;
+		float[] aspects;
+		float[] angles;
+		
+		SortedFeatures(int size)
+		{
+			this.size = size;
+			templates = new int[size];
+			lengths = new float[size];
+			aspects = new float[size];
+			angles = new float[size];
+		}
+		
+		void set(int position, int index, float length, TemplateStore store)
+		{
+			templates[position] = index;
+			lengths[position] = length;
+			aspects[position] = logAspect(store.scaleFactors[index*2], store.scaleFactors[index*2 + 1]);
+			angles[position] = store.indicativeAngles[index];
+		}
+	}
+}
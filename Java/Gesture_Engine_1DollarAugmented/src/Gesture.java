@@ -1,5 +1,8 @@
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import processing.core.*;
 import processing.data.JSONArray;
 import processing.data.JSONObject;
@@ -15,208 +18,65 @@ public class Gesture
 	float[] initialSize;
 	float referenceSquareLength;
 	int gestureResolution;
+	String sourceFile; // Absolute path of the .gst file the gesture was loaded from or saved to, null if neither
+	RecognitionMetrics metrics; // Where processPoints reports stage timings, null for nowhere
+	GestureEngine engine;       // Where events are reported (see GestureEngineListener), null for nowhere
 	
 	Gesture(GestureEngine ge, ArrayList<PVector> points)
-	{
+	{	// With null points the gesture is left empty, to be filled by loadFromJson
 		referenceSquareLength = ge.referenceSquareLength;
 		gestureResolution = ge.gestureResolution;
-		processPoints(points);
-	}
-	
-	public double distDouble(double x1, double y1, double x2, double y2)
-	{	// Finds the distance of a line in double
-		return Math.sqrt( ((x1-x2)*(x1-x2)) + ((y1-y2)*(y1-y2)) );
-	}
-	
-	public double calcLength(ArrayList<PVector> points)
-	{	// Returns the length of the line 
-		double distance = 0;
-		for(int p=0; p<points.size()-1; p++)
-		{
-			PVector curpoint = points.get(p);
-			PVector nxtpoint = points.get(p+1);
-			distance += distDouble(curpoint.x, curpoint.y, nxtpoint.x, nxtpoint.y);
-		}
-		return distance;
-	}
-	
-	public double lerpDouble(double valueA, double valueB, double amount)
-	{
-		return (amount*(valueB-valueA))+valueA;
-	}
-	
-	public PVector calcCentroid(ArrayList<PVector> points)
-	{
-		float sumX = 0 ;
-		float sumY = 0;		
-		for(int p=0; p<points.size(); p++)
-		{
-			sumX += points.get(p).x;
-			sumY += points.get(p).y;
-		}
-		return new PVector(sumX/points.size(),sumY/points.size());
-	}
-	
-	public ArrayList<PVector> resample(ArrayList<PVector> originalPoints)
-	{	// Re-samples input points to the a set number of points
-		ArrayList<PVector> resampledPoints = new ArrayList<PVector>();
-		
-		// 1. Find the total length the line
-		double originalLength = calcLength(originalPoints);
-		// 2. Divide by the number of points needed to find the length per division
-		double divisionLength = originalLength/(gestureResolution-1);
-		
-		PApplet.println("Total Distance: " + originalLength + " | Division Length: " + divisionLength);
-		
-		// 3. Traverse along the line, adding a new point when the division length is reached.
-	 	double curTraversedDist = 0; // Distance traversed since last division
-		int nextPointIndex = 1; // The next forward index to check from
-		PVector lastCheckedPoint = originalPoints.get(0);
-		
-		for(int r=0; r<gestureResolution; r++)
+		metrics = ge.metrics;
+		engine = ge;
+		if(points != null)
 		{
-			if(r==0)
-			{
-				resampledPoints.add(originalPoints.get(0));
-				// PApplet.println("Added point " + r);
-			} 
-			else
-			{
-				while(true)
-				{
-					if(nextPointIndex == originalPoints.size())
-					{	// If there are no more points to traverse, continue along in the direction of the last available line segment
-						double neededDistance = divisionLength-curTraversedDist; // Find the amount of distance needed to reach the next point
-						PVector lastDivision  = new PVector(originalPoints.get(originalPoints.size()-1).x - lastCheckedPoint.x, originalPoints.get(originalPoints.size()-1).y - lastCheckedPoint.y ); // Create a new vector with the points of the last segment 
-						lastDivision.setMag((float)neededDistance); // Set that last segment vector to the needed distance
-						
-						resampledPoints.add(new PVector(lastCheckedPoint.x + lastDivision.x,lastCheckedPoint.y + lastDivision.y));
-						// PApplet.println("Added point " + r);
-						lastCheckedPoint = resampledPoints.get(resampledPoints.size()-1);
-						curTraversedDist = 0;
-						break;
-					} 
-					else 
-					{
-						curTraversedDist += distDouble(lastCheckedPoint.x, lastCheckedPoint.y, originalPoints.get(nextPointIndex).x, originalPoints.get(nextPointIndex).y);
-						
-						if(curTraversedDist>=divisionLength)
-						{
-							double lerpAmount = divisionLength/curTraversedDist;
-							double newPointX  = lerpDouble(lastCheckedPoint.x,originalPoints.get(nextPointIndex).x,lerpAmount);
-							double newPointY  = lerpDouble(lastCheckedPoint.y,originalPoints.get(nextPointIndex).y,lerpAmount);		
-									
-							resampledPoints.add(new PVector((float)newPointX,(float)newPointY));
-							// PApplet.println("Added point " + r);
-							curTraversedDist = 0;
-							lastCheckedPoint = resampledPoints.get(resampledPoints.size()-1);
-							break;
-						}
-						else if(curTraversedDist<divisionLength)
-						{
-							lastCheckedPoint = originalPoints.get(nextPointIndex);
-							nextPointIndex++;
-						}
-					}
-				}
-			}
+			processPoints(points);
 		}
-		return resampledPoints;
-	}
-	
-	public float findIndicativeAngle(ArrayList<PVector> points, PVector centroid)
-	{
-		PVector indicativeAngleVector = new PVector(centroid.x-points.get(0).x, centroid.y-points.get(0).y);
-		return indicativeAngleVector.heading();
 	}
 	
-	public ArrayList<PVector> zeroIndicativeAngle(ArrayList<PVector> points, PVector centroid, float indicativeAngle)
-	{
-		// Rotates points about centroid by the opposite of its indicative angle
-		ArrayList<PVector> rotatedPoints = new ArrayList<PVector>();
-		
-		for(int p=0; p<points.size(); p++)
+	Gesture(TemplateStore store, int index)
+	{	// Makes a gesture from a template held in a store
+		referenceSquareLength = store.referenceSquareLength;
+		gestureResolution = store.resolution;
+		gestureName = store.names[index];
+		sourceFile = store.sources[index];
+		indicativeAngle = store.indicativeAngles[index];
+		centroid = new PVector(store.centroids[index*2], store.centroids[index*2 + 1]);
+		scaleFactor = new float[] {store.scaleFactors[index*2], store.scaleFactors[index*2 + 1]};
+		
+		float[] storePoints = store.points(index);
+		int offset = store.offset(index);
+		points = new ArrayList<PVector>(store.resolution);
+		for(int p=0; p<store.resolution; p++)
 		{
-			PVector rotatedPoint = new PVector(points.get(p).x-centroid.x, points.get(p).y-centroid.y);
-			rotatedPoint.rotate(-indicativeAngle);
-			rotatedPoints.add(new PVector(rotatedPoint.x + centroid.x, rotatedPoint.y + centroid.y));
+			points.add(new PVector(storePoints[offset + p*2], storePoints[offset + p*2 + 1]));
 		}
-		return rotatedPoints;
 	}
 	
-	public float[] findScaleFactor(ArrayList<PVector> points, float refSquareLength)
+	public void processPoints(ArrayList<PVector> inputPoints)
 	{
-		float minX = points.get(0).x;
-		float maxX = points.get(0).x;
-		float minY = points.get(0).y;
-		float maxY = points.get(0).y;
-		
-		for(int p=0; p<points.size(); p++)
+		if(inputPoints != null)
 		{
-			if(points.get(p).x < minX)
-			{
-				minX = points.get(p).x;
-			} 
-			
-			if(points.get(p).x > maxX)
+			input_points = inputPoints;
+			// The stages run on primitive buffers (see GesturePreprocessor) and are only turned into PVectors at the end
+			GesturePreprocessor preprocessor = new GesturePreprocessor(gestureResolution, referenceSquareLength);
+			preprocessor.metrics = metrics;
+			if(!preprocessor.process(inputPoints))
 			{
-				maxX = points.get(p).x;
+				report(GestureEngineListener.Event.NO_POINTS, "Could not process gesture. No points provided in constructor");
+				return;
 			}
+			preprocessor.copyTo(this);
 			
-			if(points.get(p).y < minY)
-			{
-				minY = points.get(p).y;
-			} 
-			
-			if(points.get(p).y > maxY)
+			if(reports(GestureEngineListener.Event.PROCESSED))
 			{
-				maxY = points.get(p).y;
+				report(GestureEngineListener.Event.PROCESSED, gestureName + "\n" + centroid + "\n" + indicativeAngle + "\n" + points
+						+ "\n" + Arrays.toString(scaleFactor) + "\n" + referenceSquareLength + "\n" + gestureResolution);
 			}
 		}
-		
-		float width   = maxX-minX;
-		float height  = maxY-minY;
-		initialSize   = new float[2];
-		initialSize[0]= width;
-		initialSize[1]= height;
-
-		float scale[] = {refSquareLength/width, refSquareLength/height};
-		return scale;
-	}
-
-	public ArrayList<PVector> scalePoints(ArrayList<PVector> points, float scaleX, float scaleY, PVector centroid)
-	{
-		ArrayList<PVector> scaledPoints = new ArrayList<PVector>();		
-		for(int p=0; p<points.size(); p++)
-		{
-			scaledPoints.add(new PVector((points.get(p).x-centroid.x)*scaleX, (points.get(p).y-centroid.y)*scaleY));
-		}
-		return scaledPoints;
-	}
-	
-	public void processPoints(ArrayList<PVector> inputPoints)
-	{
-		if(inputPoints != null)
-		{
-			input_points = inputPoints;
-			points = resample(inputPoints);
-			centroid = calcCentroid(points);
-			indicativeAngle = findIndicativeAngle(points,centroid);
-			points = zeroIndicativeAngle(points,centroid,indicativeAngle);
-			scaleFactor = findScaleFactor(inputPoints, referenceSquareLength);
-			points = scalePoints(points, scaleFactor[0], scaleFactor[1], centroid);	
-			
-			PApplet.println(this.gestureName);
-			PApplet.println(this.centroid);
-			PApplet.println(this.indicativeAngle);
-			PApplet.println(this.points);
-			PApplet.println(this.scaleFactor);
-			PApplet.println(this.referenceSquareLength);
-			PApplet.println(this.gestureResolution);
-		}
 		else 
 		{
-			PApplet.println("Could not process gesture. No points provided in constructor");
+			report(GestureEngineListener.Event.NO_POINTS, "Could not process gesture. No points provided in constructor");
 		}
 	}
 	
@@ -251,11 +111,18 @@ public class Gesture
 		}
 	}
 	
-	public void loadFromJson(String file, boolean verbose)
+	public void loadFromJson(String file, boolean verbose) throws IOException
 	{	// Loads and overwrites gesture information with date from a json file
-		JSONObject loadedJson = new JSONObject();
-		loadedJson = PApplet.loadJSONObject(new File(file));
-		loadFromJson(loadedJson, verbose);
+		// Read with GstReader, which gives the same result as loading a JSONObject without building one
+		GstReader reader = new GstReader();
+		reader.read(Paths.get(file));
+		reader.copyTo(this);
+		sourceFile = Paths.get(file).toAbsolutePath().normalize().toString();
+		
+		if(verbose)
+		{
+			displayGestureInfo();
+		}
 	}
 	
 	public void displayGestureInfo()
@@ -308,7 +175,10 @@ public class Gesture
 		
 		for(File file : files)
 		{
-			PApplet.println(file.toString());
+			if(reports(GestureEngineListener.Event.SAVE_FILE_SCANNED))
+			{
+				report(GestureEngineListener.Event.SAVE_FILE_SCANNED, file.toString());
+			}
 			String gestureFileName = file.toString();
 			
 			//sgestureFileName = gestureFileName.replaceAll("\\\\", "a");
@@ -322,11 +192,11 @@ public class Gesture
 				String checkPostFix = gestureFileName.substring(indexToPostFix+1, gestureFileName.length());
 				if(checkPostFix.matches("\\d+$"))
 				{
-					PApplet.println("Postfix number detected: " + checkPostFix);
 					gestureFileName = gestureFileName.substring(0,indexToPostFix);
-					
-					PApplet.println(saveFileName);
-					PApplet.println(gestureFileName);
+					if(reports(GestureEngineListener.Event.SAVE_FILE_SCANNED))
+					{
+						report(GestureEngineListener.Event.SAVE_FILE_SCANNED, "Postfix number detected: " + checkPostFix + "\n" + saveFileName + "\n" + gestureFileName);
+					}
 					
 					if(gestureFileName.equals(saveFileName))
 					{	// If the name is the same and has a postfix number, check the number to see if its higher than the current one 
@@ -334,7 +204,10 @@ public class Gesture
 						if(Integer.parseInt(checkPostFix) >= saveFilePostfix)
 						{
 							saveFilePostfix = Integer.parseInt(checkPostFix)+1;
-							PApplet.println("New save file postfix: " + saveFilePostfix);
+							if(reports(GestureEngineListener.Event.SAVE_FILE_SCANNED))
+							{
+								report(GestureEngineListener.Event.SAVE_FILE_SCANNED, "New save file postfix: " + saveFilePostfix);
+							}
 						}
 					}
 				}
@@ -342,7 +215,20 @@ public class Gesture
 		}
 		
 		gesture.save(new File(folderPath + saveFileName + "_" + saveFilePostfix + ".gst"), null);
-		PApplet.println("Gesture saved");	
+		report(GestureEngineListener.Event.GESTURE_SAVED, "Gesture saved");	
+	}
+	
+	boolean reports(GestureEngineListener.Event event)
+	{
+		return engine != null && engine.reports(event);
+	}
+	
+	void report(GestureEngineListener.Event event, String message)
+	{
+		if(engine != null)
+		{
+			engine.report(event, message);
+		}
 	}
 }
 
@@ -1,74 +1,548 @@
 // Implementation of the $1 Gesture Recognition Method
 // Uses the PVector class from Processing for point and line storage
-import java.io.File;
+// Safe to use from several threads. Recognition works from the TemplateSnapshot published last and takes no locks.
+// Everything that changes the templates, the recognizer or the template index is synchronized on the engine, and
+// publishes one new snapshot once it is done, so a batch of templates becomes visible all at once.
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import processing.core.*;
 import processing.data.JSONObject;
 
 public class GestureEngine 
 {
-	ArrayList<Gesture> gestureTemplates;
+	TemplateStore templateStore; // Every template, packed so that scoring runs over flat arrays. Only changed by writers
 	float referenceSquareLength;
 	int gestureResolution;
+	int responseSize;     // Maximum number of ranked entries in a response, 0 for all of them
+	boolean earlyAbandon; // Stop scoring a template once it can no longer make the response (see TemplateSnapshot.scoreTemplate)
+	Aggregation aggregation = Aggregation.NONE;
+	int voteNeighbours = 5; // Number of nearest templates that vote when aggregating by NEAREST_NEIGHBOUR_VOTE
+	Recognizer recognizer;  // Matching method used to score templates, see setRecognizer
+	int parallelThreshold = 4096; // Template count from which templates are scored on scanPool instead of the calling thread
+	volatile ForkJoinPool scanPool; // Pool used for parallel scans, created on first use unless set with setScanPool
+	int batchCandidateTile = 16;  // Candidates scored together against each template block in recogniseBatch
+	int batchTemplateTile = 256;  // Templates per block in recogniseBatch, sized so a block of points stays in cache
+	TemplateIndex templateIndex;  // Searched instead of scanning every template when set, see setTemplateIndex
+	volatile TemplateSnapshot snapshot; // What recognition runs against, replaced as a whole by publish
+	RecognitionMetrics metrics = new RecognitionMetrics(); // Stage timings and counters, off until metrics.setEnabled(true)
+	volatile GestureEngineListener listener;             // Where events are reported, see setListener
+	volatile GestureEngineListener.Level listenerLevel; // Least level reported, null to report nothing
+	GestureFolder gestureFolder;        // Where trainGesture saves new templates, opened on first use unless set with setGestureFolder
+	Object scanPoolLock = new Object();
+	
+	// Each thread gets its own preprocessing buffers and ranking so recognition allocates nothing per template
+	ThreadLocal<GesturePreprocessor> preprocessors = new ThreadLocal<GesturePreprocessor>();
+	ThreadLocal<TopKCollector> rankings = new ThreadLocal<TopKCollector>();
+	
+	enum Aggregation
+	{
+		NONE,                  // Every template is ranked on its own
+		BEST_PER_CLASS,        // Only the best template of each gesture name is ranked
+		NEAREST_NEIGHBOUR_VOTE // The voteNeighbours nearest templates vote, gesture names are ranked by votes
+	}
 	
 	public GestureEngine()
 	{
 		referenceSquareLength = 100;
 		gestureResolution = 64;
-		gestureTemplates = new ArrayList<Gesture>();
+		templateStore = new TemplateStore(gestureResolution, referenceSquareLength);
+		setRecognizer(new PathDistanceRecognizer());
+	}
+	
+	public synchronized void setRecognizer(Recognizer recognizer)
+	{	// Switches the matching method, precomputing the features it needs for every stored template
+		this.recognizer = recognizer;
+		templateStore.setFeatureStride(recognizer.featureStride(templateStore));
+		for(int gt=0; gt<templateStore.size; gt++)
+		{
+			recognizer.prepareTemplate(templateStore, gt);
+		}
+		if(templateIndex != null)
+		{
+			templateIndex.build(this);
+		}
+		publish();
+	}
+	
+	public synchronized boolean setTemplateStore(TemplateStore store)
+	{	// Moves every template into another store, such as an OffHeapTemplateStore, which is used from then on
+		if(store.resolution != gestureResolution || store.referenceSquareLength != referenceSquareLength)
+		{
+			if(reports(GestureEngineListener.Event.STORE_MISMATCH))
+			{
+				report(GestureEngineListener.Event.STORE_MISMATCH, "Template store of resolution " + store.resolution + " and reference square " + store.referenceSquareLength + " does not match the engine");
+			}
+			return false;
+		}
+		
+		store.ensureCapacity(store.size + templateStore.liveCount());
+		for(int gt=0; gt<templateStore.size; gt++)
+		{
+			if(!templateStore.isRemoved(gt))
+			{
+				store.add(templateStore.gesture(gt));
+			}
+		}
+		templateStore = store;
+		setRecognizer(recognizer);
+		return true;
+	}
+	
+	public synchronized void setTemplateIndex(TemplateIndex templateIndex)
+	{	// Narrows recognition down to the templates an index picks out, or back to a full scan when null
+		this.templateIndex = templateIndex;
+		if(templateIndex != null)
+		{
+			templateIndex.build(this);
+		}
+		publish();
+	}
+	
+	public synchronized void setListener(GestureEngineListener listener, GestureEngineListener.Level level)
+	{	// Reports events of the given level and above to a listener, such as GestureEngineListener.CONSOLE. A null
+		// listener stops reporting
+		listenerLevel = null;
+		this.listener = listener;
+		listenerLevel = (listener != null) ? level : null;
+	}
+	
+	boolean reports(GestureEngineListener.Event event)
+	{	// Whether an event would be delivered. Check this before building a message that takes work to put together
+		GestureEngineListener.Level level = listenerLevel;
+		return level != null && event.level.compareTo(level) >= 0;
+	}
+	
+	void report(GestureEngineListener.Event event, String message)
+	{
+		GestureEngineListener listener = this.listener;
+		if(listener != null && reports(event))
+		{
+			listener.event(event, message);
+		}
+	}
+	
+	void publish()
+	{	// Makes the current templates, recognizer and index visible to recognition. Called by writers holding the lock
+		snapshot = new TemplateSnapshot(this, templateStore.snapshot(), recognizer, templateIndex);
 	}
 	
 	public GestureResponse recogniseGesture(ArrayList<PVector> points)
 	{
-		Gesture candidate = new Gesture(this,points);
+		GesturePreprocessor candidate = preprocessor();
+		if(!candidate.process(points))
+		{
+			report(GestureEngineListener.Event.NO_POINTS, "Could not process gesture. No points provided");
+			return null;
+		}
+		return recogniseGesture(candidate);
+	}
+	
+	public GestureResponse recogniseGesture(float[] points, int count)
+	{	// Recognises count points packed as x,y pairs in a caller owned array
+		GesturePreprocessor candidate = preprocessor();
+		if(!candidate.process(points, count))
+		{
+			report(GestureEngineListener.Event.NO_POINTS, "Could not process gesture. No points provided");
+			return null;
+		}
 		return recogniseGesture(candidate);
 	}
 	
 	public GestureResponse recogniseGesture(Gesture candidate)
 	{
-		if(gestureTemplates.size() == 0) 
+		GesturePreprocessor preprocessed = preprocessor();
+		preprocessed.load(candidate);
+		return recogniseGesture(preprocessed);
+	}
+	
+	GesturePreprocessor preprocessor()
+	{	// Returns this thread's preprocessor, replacing it if the engine settings have changed since it was made
+		GesturePreprocessor preprocessor = preprocessors.get();
+		if(preprocessor == null || preprocessor.resolution != gestureResolution || preprocessor.referenceSquareLength != referenceSquareLength)
 		{
-			PApplet.println("No gesture templates stored");
+			preprocessor = new GesturePreprocessor(gestureResolution, referenceSquareLength);
+			preprocessor.metrics = metrics;
+			preprocessors.set(preprocessor);
+		}
+		return preprocessor;
+	}
+	
+	GestureResponse recogniseGesture(GesturePreprocessor candidate)
+	{
+		TemplateSnapshot snapshot = this.snapshot;
+		if(snapshot.store.liveCount() == 0) 
+		{
+			report(GestureEngineListener.Event.NO_TEMPLATES, "No gesture templates stored");
 			return null;
 		}
 		
-		// Setup a TreeMap for easier sorting
-		TreeMap<Float, Gesture> templateScoresMap = new TreeMap<Float, Gesture>(Collections.reverseOrder());
+		boolean timed = metrics.enabled;
+		long startTime = timed ? System.nanoTime() : 0;
+		long time = startTime;
 		
-		// Find the average distance of between corresponding points for candidate gesture and gesture template
-		for(int gt=0; gt<gestureTemplates.size(); gt++)
+		TopKCollector ranking = ranking();
+		snapshot.recognizer.prepareCandidate(candidate);
+		if(timed)
+		{
+			time = metrics.record(RecognitionMetrics.Stage.PREPARE_CANDIDATE, time);
+		}
+		
+		if(aggregation == Aggregation.BEST_PER_CLASS)
+		{
+			rankBestPerClass(snapshot, candidate, ranking);
+		}
+		else
 		{
-			float avgDistance = 0;
-			Gesture template = gestureTemplates.get(gt);
-			for(int p=0; p<gestureTemplates.get(gt).points.size(); p++)
+			int k = rankingSize(snapshot);
+			ranking.reset(k);
+			if(snapshot.index != null)
 			{
-				avgDistance += PApplet.dist(template.points.get(p).x, template.points.get(p).y, candidate.points.get(p).x, candidate.points.get(p).y);
+				searchIndex(snapshot, candidate, ranking);
+			}
+			else if(snapshot.store.size >= parallelThreshold)
+			{
+				ranking.merge(scanTemplatesInParallel(snapshot, candidate, k));
+			}
+			else
+			{
+				snapshot.scanTemplates(candidate, 0, snapshot.store.size, ranking);
 			}
-			avgDistance = avgDistance/candidate.gestureResolution;
-			// Calculate the correlation score between candidate and template
-			templateScoresMap.put( (1-(avgDistance/(0.5f*PApplet.dist(0f,0f,referenceSquareLength,referenceSquareLength))))*100f, template);
 		}
 		
-		// Move sorted TreeMap data into 2 different arrays for score and gesture. This is for easier handling within the GestureResponse class
-		int curIteratorIndex            = 0;
-		float[] scoresRanked            = new float[templateScoresMap.size()];
-		Gesture[] gesturesRanked        = new Gesture[templateScoresMap.size()];
-		Iterator<Float> treeMapIterator = templateScoresMap.keySet().iterator(); 
+		if(!timed)
+		{
+			return buildResponse(snapshot, ranking);
+		}
 		
-		while(treeMapIterator.hasNext())
-		{ 
-			scoresRanked[curIteratorIndex]   = treeMapIterator.next();
-			gesturesRanked[curIteratorIndex] = templateScoresMap.get(scoresRanked[curIteratorIndex]);
-			curIteratorIndex++;
-		} 
+		time = metrics.record(RecognitionMetrics.Stage.SEARCH, time);
+		GestureResponse response = buildResponse(snapshot, ranking);
+		metrics.record(RecognitionMetrics.Stage.RESPONSE, time);
+		metrics.record(RecognitionMetrics.Stage.RECOGNITION, startTime);
+		// Templates the final pass did not score were pruned. After a fallback scan that is none of them
+		int finalScored = (ranking.fallbackScored > 0) ? ranking.fallbackScored : ranking.scored;
+		metrics.countSearch(ranking.scored, ranking.abandoned, Math.max(snapshot.store.liveCount()-finalScored, 0), ranking.fallbackScored > 0);
+		return response;
+	}
+	
+	public GestureSession startSession(int updateInterval)
+	{	// Starts recognising a stroke while it is drawn, with a provisional guess every updateInterval points
+		return new GestureSession(this, updateInterval);
+	}
+	
+	public GestureResponse[] recogniseBatch(List<ArrayList<PVector>> strokes)
+	{	// Recognises many strokes at once. Responses are in the same order as the strokes, null where a stroke could not be processed
+		if(!metrics.enabled)
+		{
+			return scoreBatch(strokes);
+		}
+		long startTime = System.nanoTime();
+		GestureResponse[] responses = scoreBatch(strokes);
+		metrics.record(RecognitionMetrics.Stage.BATCH, startTime);
+		return responses;
+	}
+	
+	GestureResponse[] scoreBatch(List<ArrayList<PVector>> strokes)
+	{
+		GestureResponse[] responses = new GestureResponse[strokes.size()];
+		final TemplateSnapshot snapshot = this.snapshot;
+		if(snapshot.store.liveCount() == 0) 
+		{
+			report(GestureEngineListener.Event.NO_TEMPLATES, "No gesture templates stored");
+			return responses;
+		}
+		
+		// Preprocess every stroke up front, each into its own buffers
+		final GesturePreprocessor[] candidates = new GesturePreprocessor[strokes.size()];
+		for(int c=0; c<candidates.length; c++)
+		{
+			GesturePreprocessor candidate = new GesturePreprocessor(gestureResolution, referenceSquareLength);
+			candidate.metrics = metrics;
+			if(candidate.process(strokes.get(c)))
+			{
+				snapshot.recognizer.prepareCandidate(candidate);
+				candidates[c] = candidate;
+			}
+		}
+		
+		if(aggregation == Aggregation.BEST_PER_CLASS)
+		{	// Class bests are kept per candidate rather than in a ranking, so these are scored one at a time
+			for(int c=0; c<candidates.length; c++)
+			{
+				if(candidates[c] != null)
+				{
+					TopKCollector ranking = new TopKCollector(0);
+					rankBestPerClass(snapshot, candidates[c], ranking);
+					responses[c] = buildResponse(snapshot, ranking);
+				}
+			}
+			return responses;
+		}
+		
+		if(snapshot.index != null)
+		{	// An index picks different templates for every candidate, so there is no shared block to tile over
+			for(int c=0; c<candidates.length; c++)
+			{
+				if(candidates[c] != null)
+				{
+					TopKCollector ranking = new TopKCollector(rankingSize(snapshot));
+					searchIndex(snapshot, candidates[c], ranking);
+					responses[c] = buildResponse(snapshot, ranking);
+				}
+			}
+			return responses;
+		}
+		
+		final TopKCollector[] rankings = new TopKCollector[candidates.length];
+		int tileCount = (candidates.length + batchCandidateTile - 1)/batchCandidateTile;
+		
+		if(tileCount > 1 && (long)candidates.length*snapshot.store.size >= parallelThreshold)
+		{	// Candidate tiles do not share any state, so they are spread over the scan pool
+			ArrayList<Callable<Void>> tiles = new ArrayList<Callable<Void>>(tileCount);
+			for(int tile=0; tile<tileCount; tile++)
+			{
+				final int from = tile*batchCandidateTile;
+				final int to = Math.min(from+batchCandidateTile, candidates.length);
+				tiles.add(new Callable<Void>()
+				{
+					public Void call()
+					{
+						scanBatchTile(snapshot, candidates, rankings, from, to);
+						return null;
+					}
+				});
+			}
+			scanPool().invokeAll(tiles);
+		}
+		else
+		{
+			for(int from=0; from<candidates.length; from+=batchCandidateTile)
+			{
+				scanBatchTile(snapshot, candidates, rankings, from, Math.min(from+batchCandidateTile, candidates.length));
+			}
+		}
+		
+		for(int c=0; c<candidates.length; c++)
+		{
+			if(rankings[c] != null)
+			{
+				responses[c] = buildResponse(snapshot, rankings[c]);
+			}
+		}
+		return responses;
+	}
+	
+	void scanBatchTile(TemplateSnapshot snapshot, GesturePreprocessor[] candidates, TopKCollector[] rankings, int from, int to)
+	{	// Scores candidates from..to against the store one block of templates at a time, so a block is
+		// read into cache once and then scored against every candidate of the tile while it is still there
+		int k = rankingSize(snapshot);
+		for(int c=from; c<to; c++)
+		{
+			if(candidates[c] != null)
+			{
+				rankings[c] = new TopKCollector(k);
+			}
+		}
+		
+		for(int blockStart=0; blockStart<snapshot.store.size; blockStart+=batchTemplateTile)
+		{
+			int blockEnd = Math.min(blockStart+batchTemplateTile, snapshot.store.size);
+			for(int c=from; c<to; c++)
+			{
+				if(candidates[c] != null)
+				{
+					snapshot.scanTemplates(candidates[c], blockStart, blockEnd, rankings[c]);
+				}
+			}
+		}
+	}
+	
+	void searchIndex(TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking)
+	{	// Searches the index, falling back to a full scan when every template it picked had been removed or was
+		// added after the snapshot, so a recognition always has an answer while any template is live
+		snapshot.index.search(snapshot, candidate, ranking);
+		if(ranking.size() == 0)
+		{	// Counted apart from what the index scored, as the scan covers those templates again
+			int indexScored = ranking.scored;
+			snapshot.scanTemplates(candidate, 0, snapshot.store.size, ranking);
+			ranking.fallbackScored = ranking.scored - indexScored;
+		}
+	}
+	
+	int rankingSize(TemplateSnapshot snapshot)
+	{	// Number of templates to keep while scanning, for rankings that are not aggregated per class
+		return (aggregation == Aggregation.NEAREST_NEIGHBOUR_VOTE) ? voteNeighbours : (responseSize > 0 ? responseSize : snapshot.store.size);
+	}
+	
+	GestureResponse buildResponse(TemplateSnapshot snapshot, TopKCollector ranking)
+	{	// Returns null for an empty ranking, which there is no best gesture of
+		if(ranking.size() == 0)
+		{
+			return null;
+		}
+		ranking.sort();
+		
+		if(aggregation == Aggregation.NEAREST_NEIGHBOUR_VOTE)
+		{
+			return voteResponse(snapshot, ranking);
+		}
+		
+		// Move the ranked templates into 2 different arrays for score and gesture. This is for easier handling within the GestureResponse class
+		float[] scoresRanked     = new float[ranking.size()];
+		Gesture[] gesturesRanked = new Gesture[ranking.size()];
+		for(int r=0; r<ranking.size(); r++)
+		{
+			scoresRanked[r]   = snapshot.toScore(ranking.distance(r));
+			gesturesRanked[r] = snapshot.store.gesture(ranking.index(r));
+		}
 		
 		return new GestureResponse(gesturesRanked, scoresRanked);
 	}
 	
+	TopKCollector ranking()
+	{
+		TopKCollector ranking = rankings.get();
+		if(ranking == null)
+		{
+			ranking = new TopKCollector(0);
+			rankings.set(ranking);
+		}
+		return ranking;
+	}
+	
+	TopKCollector scanTemplatesInParallel(TemplateSnapshot snapshot, GesturePreprocessor candidate, int k)
+	{	// Splits the store into ranges scored on the scan pool, each range keeping its own top k
+		ForkJoinPool pool = scanPool();
+		int leafSize = Math.max(256, snapshot.store.size/(pool.getParallelism()*4));
+		return pool.invoke(new TemplateScanTask(snapshot, candidate, 0, snapshot.store.size, k, leafSize));
+	}
+	
+	public void setScanPool(ForkJoinPool scanPool)
+	{
+		this.scanPool = scanPool;
+	}
+	
+	ForkJoinPool scanPool()
+	{	// Locks on its own lock rather than the engine, so a recognition never waits for a writer here
+		ForkJoinPool pool = scanPool;
+		if(pool == null)
+		{
+			synchronized(scanPoolLock)
+			{
+				if(scanPool == null)
+				{
+					scanPool = new ForkJoinPool();
+				}
+				pool = scanPool;
+			}
+		}
+		return pool;
+	}
+	
+	void rankBestPerClass(TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking)
+	{	// Finds the best template of every gesture name, then ranks the names by their best template
+		TemplateStore templateStore = snapshot.store;
+		int classCount = templateStore.classCount();
+		int scored = 0;
+		float[] classBest = new float[classCount];
+		int[] classBestIndex = new int[classCount];
+		Arrays.fill(classBest, Float.POSITIVE_INFINITY);
+		Arrays.fill(classBestIndex, -1);
+		
+		for(int gt=0; gt<templateStore.size; gt++)
+		{
+			if(templateStore.isRemoved(gt))
+			{
+				continue;
+			}
+			int classId = templateStore.classIds[gt];
+			// A template only matters if it beats the best template found so far for its own name
+			float bound = earlyAbandon ? classBest[classId] : Float.POSITIVE_INFINITY;
+			float distance = snapshot.recognizer.distance(candidate, templateStore, gt, bound);
+			scored++;
+			if(distance < classBest[classId] || classBestIndex[classId] == -1)
+			{
+				classBest[classId] = distance;
+				classBestIndex[classId] = gt;
+			}
+		}
+		
+		ranking.reset(responseSize > 0 ? Math.min(responseSize, classCount) : classCount);
+		ranking.scored = scored;
+		for(int c=0; c<classCount; c++)
+		{
+			if(classBestIndex[c] != -1)
+			{
+				ranking.offer(classBest[c], classBestIndex[c]);
+			}
+		}
+	}
+	
+	GestureResponse voteResponse(TemplateSnapshot snapshot, TopKCollector neighbours)
+	{	// Each of the nearest templates votes for its gesture name. Names are ranked by votes, then by their best template
+		TemplateStore templateStore = snapshot.store;
+		int classCount = templateStore.classCount();
+		int[] votes = new int[classCount];
+		int[] classBestRank = new int[classCount];
+		Arrays.fill(classBestRank, -1);
+		int votedClasses = 0;
+		
+		for(int r=0; r<neighbours.size(); r++)
+		{
+			int classId = templateStore.classIds[neighbours.index(r)];
+			if(votes[classId] == 0)
+			{
+				classBestRank[classId] = r; // Neighbours are sorted, so the first vote is the best template of the name
+				votedClasses++;
+			}
+			votes[classId]++;
+		}
+		
+		int rankedCount = responseSize > 0 ? Math.min(responseSize, votedClasses) : votedClasses;
+		int[] votesRanked        = new int[rankedCount];
+		float[] scoresRanked     = new float[rankedCount];
+		Gesture[] gesturesRanked = new Gesture[rankedCount];
+		
+		for(int r=0; r<rankedCount; r++)
+		{
+			// Pick the name with the most votes that has not been ranked yet. Ties go to the name with the better template
+			int bestClass = -1;
+			for(int c=0; c<classCount; c++)
+			{
+				if(votes[c] == 0)
+				{
+					continue;
+				}
+				if(bestClass == -1 || votes[c] > votes[bestClass] || (votes[c] == votes[bestClass] && classBestRank[c] < classBestRank[bestClass]))
+				{
+					bestClass = c;
+				}
+			}
+			
+			votesRanked[r]    = votes[bestClass];
+			scoresRanked[r]   = snapshot.toScore(neighbours.distance(classBestRank[bestClass]));
+			gesturesRanked[r] = templateStore.gesture(neighbours.index(classBestRank[bestClass]));
+			votes[bestClass]  = 0;
+		}
+		
+		GestureResponse response = new GestureResponse(gesturesRanked, scoresRanked);
+		response.votesRanked = votesRanked;
+		return response;
+	}
+	
+	
 	public void trainGesture(ArrayList<PVector> points, String gestureName)
 	{
 		Gesture templateGesture = new Gesture(this,points);
@@ -76,11 +550,148 @@ public class GestureEngine
 	}
 	
 	public void trainGesture(Gesture gesture, String gestureName)
-	{
+	{	// Adds the gesture as a template and queues it to be saved in the gesture folder, without waiting for the disk
 		gesture.gestureName = gestureName;
-		gestureTemplates.add(gesture);
-		PApplet.println("Gesture added with name '" + gestureName + "'");
-		gesture.saveAsJson("./gestures/");
+		synchronized(this)
+		{	// The file is picked first so the template knows it, and only written once the store has taken the template,
+			// so a rejected gesture leaves no file behind. Both under the lock so a watcher of the folder can not see the
+			// file before the template is in the store (it would then add the gesture a second time)
+			GestureFolder folder = gestureFolder();
+			Path file = folder.reserveFile(gestureName);
+			gesture.sourceFile = file.toAbsolutePath().normalize().toString();
+			if(!addTemplate(gesture))
+			{
+				gesture.sourceFile = null;
+				return;
+			}
+			folder.write(gesture, file);
+		}
+		if(reports(GestureEngineListener.Event.GESTURE_TRAINED))
+		{
+			report(GestureEngineListener.Event.GESTURE_TRAINED, "Gesture added with name '" + gestureName + "'");
+		}
+	}
+	
+	public synchronized void setGestureFolder(String folderPath)
+	{	// Saves trained gestures to another folder from now on. Writes queued for the previous folder are finished first
+		if(gestureFolder != null)
+		{
+			gestureFolder.close();
+		}
+		gestureFolder = new GestureFolder(folderPath, this);
+	}
+	
+	synchronized GestureFolder gestureFolder()
+	{
+		if(gestureFolder == null)
+		{
+			gestureFolder = new GestureFolder("./gestures/", this);
+		}
+		return gestureFolder;
+	}
+	
+	public boolean flushSavedGestures()
+	{	// Waits until every trained gesture is on disk. Returns false if any of them could not be written
+		GestureFolder folder;
+		synchronized(this)
+		{
+			folder = gestureFolder;
+		}
+		return folder == null || folder.flush();
+	}
+	
+	synchronized boolean addTemplate(Gesture template)
+	{	// Adds a template to the store, prepares it for the recognizer and publishes it
+		int from = templateStore.size;
+		if(!appendTemplate(template))
+		{
+			return false;
+		}
+		prepareTemplates(from);
+		publish();
+		return true;
+	}
+	
+	synchronized void addTemplates(List<Gesture> templates)
+	{	// Adds several templates in one step, growing the store, updating the index and publishing once
+		int from = templateStore.size;
+		templateStore.ensureCapacity(templateStore.size + templates.size());
+		for(Gesture template : templates)
+		{
+			appendTemplate(template);
+		}
+		prepareTemplates(from);
+		publish();
+	}
+	
+	public synchronized int replaceTemplates(Set<String> sourceFiles, List<Gesture> templates)
+	{	// Removes every template loaded from one of the files (absolute paths, see Gesture.sourceFile) and adds the
+		// new templates, publishing once. Returns the number of templates removed
+		int removed = templateStore.removeSources(sourceFiles);
+		int from = templateStore.size;
+		templateStore.ensureCapacity(templateStore.size + templates.size());
+		for(Gesture template : templates)
+		{
+			appendTemplate(template);
+		}
+		prepareTemplates(from);
+		
+		if(templateStore.removedCount > templateStore.liveCount())
+		{	// Most of the store is removed templates by now, so move the rest to a store of their own. That publishes too
+			compactTemplates();
+		}
+		else
+		{
+			if(removed > 0 && templateIndex != null)
+			{	// Built again so the index stops picking removed templates (and PrototypeIndex drops classes with none left)
+				templateIndex.build(this);
+			}
+			publish();
+		}
+		return removed;
+	}
+	
+	public synchronized void compactTemplates()
+	{	// Moves the templates that have not been removed to a new, empty store of the same kind (see
+		// TemplateStore.newEmptyCopy), and builds the template index again
+		TemplateStore compacted = templateStore;
+		if(setTemplateStore(compacted.newEmptyCopy()))
+		{
+			compacted.release();
+		}
+	}
+	
+	public synchronized TemplateFolderWatcher watchGestureFolder(String folderPath) throws IOException
+	{	// Keeps the templates in step with the .gst files of a folder from now on, see TemplateFolderWatcher.
+		// Files already in the folder are not loaded, use loadGestureFolder for them first
+		TemplateFolderWatcher watcher = new TemplateFolderWatcher(this, folderPath);
+		watcher.start();
+		return watcher;
+	}
+	
+	boolean appendTemplate(Gesture template)
+	{	// Adds a template to the store only. Recognition does not see it before the next publish
+		if(!templateStore.add(template))
+		{
+			if(reports(GestureEngineListener.Event.TEMPLATE_REJECTED))
+			{
+				report(GestureEngineListener.Event.TEMPLATE_REJECTED, "Gesture '" + template.gestureName + "' does not have " + gestureResolution + " points and was not added");
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	void prepareTemplates(int from)
+	{	// Prepares the templates from the given one onwards for the recognizer, then adds them to the template index
+		for(int gt=from; gt<templateStore.size; gt++)
+		{
+			recognizer.prepareTemplate(templateStore, gt);
+		}
+		if(templateIndex != null && from < templateStore.size)
+		{
+			templateIndex.templatesAdded(this, from);
+		}
 	}
 	
 	public boolean loadGestureTemplate(JSONObject json, boolean verbose)
@@ -89,8 +700,7 @@ public class GestureEngine
 		{
 			Gesture loadedGesture = new Gesture(this,null);
 			loadedGesture.loadFromJson(json, verbose);
-			gestureTemplates.add(loadedGesture);
-			return true;
+			return addTemplate(loadedGesture);
 		}
 		catch(Exception e)
 		{
@@ -110,7 +720,10 @@ public class GestureEngine
 			{
 				Gesture loadedGesture = new Gesture(this,null);
 				loadedGesture.loadFromJson(filePath, verbose);
-				gestureTemplates.add(loadedGesture);
+				if(!addTemplate(loadedGesture))
+				{
+					return false;
+				}
 				
 				if(verbose)
 				{
@@ -131,36 +744,139 @@ public class GestureEngine
 		}
 	}
 	
+	public boolean loadGestureBundle(String bundlePath, boolean verbose)
+	{	// Loads every template of a binary bundle (see TemplateBundle)
+		try
+		{
+			long startTime = System.nanoTime();
+			int loaded;
+			synchronized(this)
+			{
+				int first = templateStore.size;
+				loaded = TemplateBundle.load(bundlePath, templateStore);
+				prepareTemplates(first);
+				publish();
+			}
+			if(metrics.enabled)
+			{
+				metrics.record(RecognitionMetrics.Stage.LOAD_BUNDLE, startTime);
+				metrics.countLoaded(loaded);
+			}
+			
+			if(verbose)
+			{
+				System.out.println(loaded + " gestures loaded from " + bundlePath);
+			}
+			return true;
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	public boolean saveGestureBundle(String bundlePath)
+	{	// Saves every stored template to a single binary bundle
+		return TemplateBundle.write(snapshot.store, bundlePath);
+	}
+	
 	public boolean loadGestureTemplatesFromFolder(String folderPath, boolean verbose)
 	{
-		File dir = new File(folderPath);
-		File [] files = dir.listFiles();
+		return loadGestureFolder(folderPath, verbose).succeeded();
+	}
+	
+	public TemplateLoadReport loadGestureFolder(String folderPath, boolean verbose)
+	{	// Reads and parses every .gst file of a folder in parallel on the scan pool, then adds all of them in one step.
+		// A file that fails to load is listed in the report with the reason, and does not stop the others from loading
+		long startTime = System.nanoTime();
+		TemplateLoadReport report = new TemplateLoadReport(folderPath);
 		
-		try
+		ArrayList<Path> files = new ArrayList<Path>();
+		try(DirectoryStream<Path> folder = Files.newDirectoryStream(Paths.get(folderPath), "*.gst"))
 		{
-			for(File file : files)
+			for(Path file : folder)
 			{
-				String[] pathToLoad = file.toString().split("[\\\\/]");
-				String fileToLoad   = pathToLoad[pathToLoad.length-1];
-				
-				// Check to see if the file is a .gst file
-				if(fileToLoad.split("[.]")[1].equals("gst"))
+				if(Files.isRegularFile(file))
 				{
-					Gesture loadedGesture = new Gesture(this,null);
-					loadedGesture.loadFromJson(file.toString(), verbose);
-					gestureTemplates.add(loadedGesture);
-					if(verbose)
-					{
-						System.out.println("Gesture " + fileToLoad + " loaded successfully");
-					}
+					files.add(file);
 				}
 			}
-			return true;
 		}
 		catch(Exception e)
 		{
-			return false;
+			report.failed(folderPath, e);
+			report.elapsedNanos = System.nanoTime()-startTime;
+			return report;
+		}
+		Collections.sort(files); // Keep the template order the same from one run to the next
+		
+		// Add everything that parsed in a single step, in file order
+		ArrayList<Gesture> loadedGestures = parseGestureFiles(files, report, verbose);
+		addTemplates(loadedGestures);
+		
+		report.elapsedNanos = System.nanoTime()-startTime;
+		if(metrics.enabled)
+		{
+			metrics.record(RecognitionMetrics.Stage.LOAD_FOLDER, startTime);
+			metrics.countLoaded(loadedGestures.size());
+		}
+		if(verbose)
+		{
+			report.printReport();
+		}
+		return report;
+	}
+	
+	ArrayList<Gesture> parseGestureFiles(List<Path> files, TemplateLoadReport report, boolean verbose)
+	{	// Parses .gst files in parallel on the scan pool. Returns the gestures that parsed, in the order of the files
+		ArrayList<Callable<Gesture>> parseTasks = new ArrayList<Callable<Gesture>>(files.size());
+		for(final Path file : files)
+		{
+			parseTasks.add(new Callable<Gesture>()
+			{
+				public Gesture call() throws Exception
+				{
+					Gesture loadedGesture = new Gesture(GestureEngine.this,null);
+					loadedGesture.loadFromJson(file.toString(), false);
+					return loadedGesture;
+				}
+			});
+		}
+		List<Future<Gesture>> parsed = scanPool().invokeAll(parseTasks);
+		
+		ArrayList<Gesture> loadedGestures = new ArrayList<Gesture>(files.size());
+		for(int f=0; f<files.size(); f++)
+		{
+			String fileName = files.get(f).getFileName().toString();
+			try
+			{
+				Gesture loadedGesture = parsed.get(f).get();
+				if(loadedGesture.points == null || loadedGesture.points.size() != gestureResolution)
+				{
+					report.failed(fileName, new IllegalArgumentException("Gesture does not have " + gestureResolution + " points"));
+					continue;
+				}
+				loadedGestures.add(loadedGesture);
+				report.loaded(fileName);
+				
+				if(verbose)
+				{
+					loadedGesture.displayGestureInfo();
+					System.out.println("Gesture " + fileName + " loaded successfully");
+				}
+			}
+			catch(ExecutionException e)
+			{
+				report.failed(fileName, e.getCause());
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				report.failed(fileName, e);
+			}
 		}
+		return loadedGestures;
 	}
 	
 	class GestureResponse
@@ -171,6 +887,7 @@ public class GestureEngine
 		
 		float[] scoresRanked;
 		Gesture[] gesturesRanked;
+		int[] votesRanked; // Votes for each ranked gesture when aggregating by NEAREST_NEIGHBOUR_VOTE, otherwise null
 		
 		// These are empty values, but could be useful for those working with GestureResponse
 		PVector startPoint;
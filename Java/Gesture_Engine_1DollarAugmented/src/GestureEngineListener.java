@@ -0,0 +1,47 @@
+// Receives what a GestureEngine has to report, such as strokes it could not process or the steps of preprocessing
+// Nothing is reported until a listener is set with GestureEngine.setListener, and then only events at or above the
+// level it was set with. Messages are only built for events that will be delivered, so with no listener set
+// recognition does no console output and no string formatting.
+// Events can arrive from any thread that uses the engine, including the scan pool and the folder watcher.
+// CONSOLE prints every event it gets, for the output the engine used to print on its own.
+public interface GestureEngineListener
+{
+	enum Level
+	{
+		DEBUG,  // Working values of every stroke processed, too many to leave on while recognising
+		INFO,   // Things done on request, such as a gesture trained or saved
+		WARNING // Something asked for could not be done
+	}
+	
+	enum Event
+	{
+		PROCESSED(Level.DEBUG),              // Gesture.processPoints finished, with the values it worked out
+		SAVE_FILE_SCANNED(Level.DEBUG),      // Gesture.saveAsJson checked the postfix of a file already in the folder
+		GESTURE_SAVED(Level.INFO),           // Gesture.saveAsJson wrote a file
+		GESTURE_SAVE_FAILED(Level.WARNING),  // GestureFolder could not write a trained gesture
+		GESTURE_TRAINED(Level.INFO),         // trainGesture added a template
+		NO_POINTS(Level.WARNING),            // A stroke had no points to process
+		NO_TEMPLATES(Level.WARNING),         // Recognition was asked for with no templates stored
+		TEMPLATE_REJECTED(Level.WARNING),    // A template did not have the engine's resolution
+		STORE_MISMATCH(Level.WARNING),       // setTemplateStore was given a store of other settings
+		FOLDER_RELOADED(Level.INFO),         // A TemplateFolderWatcher applied a change to its folder
+		FOLDER_RELOAD_FAILED(Level.WARNING); // A TemplateFolderWatcher could not read some files, or the whole change
+		
+		final Level level;
+		
+		Event(Level level)
+		{
+			this.level = level;
+		}
+	}
+	
+	void event(Event event, String message);
+	
+	GestureEngineListener CONSOLE = new GestureEngineListener()
+	{
+		public void event(Event event, String message)
+		{
+			System.out.println(message);
+		}
+	};
+}
@@ -6,6 +6,7 @@ public class GestureExample extends PApplet
 {
 	ArrayList<PVector> drawnPoints;
 	GestureEngine gestureEngine;
+	GestureSession gestureSession;
 	String textBoxEntry = "";
 	String bestGuess = "No gesture templates stored";
 	float inferredAngle = 0;
@@ -25,9 +26,16 @@ public class GestureExample extends PApplet
 	{
 		background(255);
 		gestureEngine = new GestureEngine();
+		gestureEngine.setListener(GestureEngineListener.CONSOLE, GestureEngineListener.Level.INFO); // Trained gestures and warnings, not the per stroke detail
 		gestureEngine.loadGestureTemplatesFromFolder("./gestures/", true);
 	}
 	
+	public void exit()
+	{	// Trained gestures are saved in the background, so let the last ones reach the disk before closing
+		gestureEngine.flushSavedGestures();
+		super.exit();
+	}
+	
 	public void draw()
 	{
 		background(255);
@@ -60,6 +68,10 @@ public class GestureExample extends PApplet
 			drawnPoints = new ArrayList<PVector>();
 			drawnPoints = new ArrayList<PVector>();
 			drawnPoints.add(new PVector(mouseX,mouseY));
+			
+			// Guess while the stroke is drawn, every 8 points
+			gestureSession = gestureEngine.startSession(8);
+			gestureSession.addPoint(mouseX, mouseY);
 		}
 		
 		if(mouseY > height-20 && mouseX > width/2)
@@ -84,7 +96,7 @@ public class GestureExample extends PApplet
 		{
 			if(drawnPoints.size() > 1)
 			{
-				GestureEngine.GestureResponse result = gestureEngine.recogniseGesture(drawnPoints);
+				GestureEngine.GestureResponse result = gestureSession.finish();
 				if(result != null)
 				{
 					bestGuess = result.bestGuess + " (" + (int)(result.bestScore) + "%)";
@@ -103,6 +115,7 @@ public class GestureExample extends PApplet
 			if(drawnPoints.size() == 0)
 			{
 				drawnPoints.add(new PVector(mouseX, mouseY));
+				gestureSession.addPoint(mouseX, mouseY);
 			}
 			else 
 			{
@@ -112,6 +125,12 @@ public class GestureExample extends PApplet
 				if(dstFrmLstPt > 2)
 				{
 					drawnPoints.add(new PVector(mouseX, mouseY));
+					
+					GestureEngine.GestureResponse provisional = gestureSession.addPoint(mouseX, mouseY);
+					if(provisional != null)
+					{
+						bestGuess = provisional.bestGuess + "?";
+					}
 				}
 			}
 		}
@@ -0,0 +1,190 @@
+// Write-behind persistence of trained gestures to a folder of .gst files
+// Gesture.saveAsJson lists the whole folder on every save to find the next free "_N" postfix for a name, and writes
+// on the caller's thread. Here the folder is listed once, the highest postfix of every name is kept in a map, and
+// save only reserves a file name and queues the write, so training costs the same however many files there are.
+// Writes run in order on one background thread. Each goes to a temporary file that is then moved over the target,
+// so a crash never leaves a half written .gst behind. The thread is a daemon and stops once the queue has been idle
+// for a while, so it never keeps the program alive, and writes still queued when the program ends are lost. Call
+// flush to wait for the queued writes, and close when done with the folder. Failed writes are reported to the
+// engine's listener (see GestureEngineListener).
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class GestureFolder
+{
+	Path folder;
+	GestureEngine engine; // Where failed writes are reported, null for nowhere
+	HashMap<String, Integer> nextPostfixes = new HashMap<String, Integer>(); // Next free postfix of each gesture name
+	ThreadPoolExecutor writer;
+	
+	AtomicLong queued = new AtomicLong();
+	AtomicLong written = new AtomicLong();
+	AtomicLong failed = new AtomicLong();
+	
+	public GestureFolder(String folderPath)
+	{
+		this(folderPath, null);
+	}
+	
+	public GestureFolder(String folderPath, GestureEngine engine)
+	{
+		this.engine = engine;
+		folder = Paths.get(folderPath);
+		File[] files = folder.toFile().listFiles();
+		if(files != null)
+		{
+			for(File file : files)
+			{
+				reserve(file.getName());
+			}
+		}
+		
+		writer = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "Gesture folder writer " + folder);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		writer.allowCoreThreadTimeOut(true);
+	}
+	
+	public synchronized Path save(Gesture gesture)
+	{	// Queues the gesture to be written as <name>_<postfix>.gst and returns the file it will be written to
+		Path file = reserveFile(gesture.gestureName);
+		write(gesture, file);
+		return file;
+	}
+	
+	synchronized Path reserveFile(String gestureName)
+	{	// Picks the next free <name>_<postfix>.gst without writing anything, for a gesture that may still be turned down
+		if(writer.isShutdown())
+		{
+			throw new IllegalStateException("Gesture folder " + folder + " is closed");
+		}
+		
+		Integer postfix = nextPostfixes.get(gestureName);
+		postfix = (postfix == null) ? 0 : postfix;
+		nextPostfixes.put(gestureName, postfix+1);
+		return folder.resolve(gestureName + "_" + postfix + ".gst");
+	}
+	
+	synchronized void write(Gesture gesture, final Path file)
+	{	// Queues the gesture to be written to a file picked by reserveFile
+		if(writer.isShutdown())
+		{
+			throw new IllegalStateException("Gesture folder " + folder + " is closed");
+		}
+		
+		// Encoded now, so the write does not depend on the gesture staying as it is
+		final byte[] json = GstWriter.encode(gesture).getBytes(StandardCharsets.UTF_8);
+		queued.incrementAndGet();
+		writer.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					GstWriter.writeAtomically(file, json);
+					written.incrementAndGet();
+				}
+				catch(IOException e)
+				{
+					failed.incrementAndGet();
+					if(engine != null)
+					{
+						engine.report(GestureEngineListener.Event.GESTURE_SAVE_FAILED, "Could not save gesture to " + file + ": " + e);
+					}
+				}
+			}
+		});
+	}
+	
+	public boolean flush()
+	{	// Waits until every write queued so far is done. Returns false if any write has failed since the folder was opened.
+		// Once the folder is closed there is nothing left to wait for
+		if(writer.isShutdown())
+		{
+			return failed.get() == 0;
+		}
+		try
+		{
+			Future<?> marker = writer.submit(new Runnable()
+			{
+				public void run()
+				{
+				}
+			});
+			marker.get();
+		}
+		catch(RejectedExecutionException e)
+		{	// Closed meanwhile, and close writes everything queued before it stops the writer
+		}
+		catch(ExecutionException e)
+		{
+			e.printStackTrace();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return failed.get() == 0;
+	}
+	
+	public synchronized boolean close()
+	{	// Writes everything still queued and stops the writer. Gestures can not be saved here afterwards
+		boolean succeeded = flush();
+		writer.shutdown();
+		return succeeded;
+	}
+	
+	public long pendingWrites()
+	{
+		return queued.get() - written.get() - failed.get();
+	}
+	
+	synchronized void reserve(String fileName)
+	{	// Marks the postfix of an existing file as taken. Names are split the same way saveAsJson does
+		String baseName = fileName.split("[.]")[0];
+		int indexToPostFix = baseName.lastIndexOf("_");
+		if(indexToPostFix == -1)
+		{
+			return;
+		}
+		
+		String postfix = baseName.substring(indexToPostFix+1);
+		if(!postfix.matches("\\d+"))
+		{
+			return;
+		}
+		
+		String gestureName = baseName.substring(0, indexToPostFix);
+		try
+		{
+			int next = Integer.parseInt(postfix)+1;
+			Integer current = nextPostfixes.get(gestureName);
+			if(current == null || next > current)
+			{
+				nextPostfixes.put(gestureName, next);
+			}
+		}
+		catch(NumberFormatException e)
+		{	// Too many digits to be a postfix this code wrote
+		}
+	}
+}
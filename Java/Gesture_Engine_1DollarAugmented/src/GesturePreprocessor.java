@@ -0,0 +1,364 @@
+// The $1 preprocessing pipeline (resample, centroid, rotate, scale) that Gesture.processPoints and recognition run
+// Every stage reads and writes reusable primitive buffers owned by the preprocessor, so once the
+// buffers have grown to fit the longest stroke seen, processing a stroke creates no objects.
+// The arithmetic is step for step that of the PVector based stages Gesture used to have, so the normalised points
+// of templates saved by earlier versions still match.
+// A preprocessor is not thread safe, GestureEngine hands out one per thread.
+import java.util.ArrayList;
+
+import processing.core.*;
+
+public class GesturePreprocessor
+{
+	int resolution;
+	float referenceSquareLength;
+	
+	float[] input;  // Copy of the raw input points, packed as x,y pairs
+	int inputCount; // Number of raw input points
+	
+	float[] resampled; // Resampled points before rotation and scaling, packed as x,y pairs
+	float[] points;    // Normalised points, packed as x,y pairs
+	float[] features;  // Recognizer specific data worked out from the points (see Recognizer.prepareCandidate)
+	
+	float centroidX;
+	float centroidY;
+	float indicativeAngle; // In radians
+	float scaleX;
+	float scaleY;
+	float width;  // Width of the raw input points
+	float height; // Height of the raw input points
+	
+	RecognitionMetrics metrics; // Where stage timings go when enabled, null for nowhere
+	
+	public GesturePreprocessor(int resolution, float referenceSquareLength)
+	{
+		this.resolution = resolution;
+		this.referenceSquareLength = referenceSquareLength;
+		input = new float[256];
+		resampled = new float[resolution*2];
+		points = new float[resolution*2];
+		features = new float[0];
+	}
+	
+	public boolean process(ArrayList<PVector> inputPoints)
+	{
+		if(inputPoints == null || inputPoints.size() == 0)
+		{
+			return false;
+		}
+		
+		int count = inputPoints.size();
+		ensureInputCapacity(count);
+		for(int p=0; p<count; p++)
+		{
+			PVector point = inputPoints.get(p);
+			input[p*2]     = point.x;
+			input[p*2 + 1] = point.y;
+		}
+		inputCount = count;
+		
+		processInput();
+		return true;
+	}
+	
+	public boolean process(float[] inputPoints, int count)
+	{	// Processes count points packed as x,y pairs
+		if(inputPoints == null || count == 0)
+		{
+			return false;
+		}
+		
+		ensureInputCapacity(count);
+		System.arraycopy(inputPoints, 0, input, 0, count*2);
+		inputCount = count;
+		
+		processInput();
+		return true;
+	}
+	
+	public void load(Gesture gesture)
+	{	// Loads an already processed gesture so it can be scored without running the pipeline again
+		for(int p=0; p<resolution && p<gesture.points.size(); p++)
+		{
+			PVector point = gesture.points.get(p);
+			points[p*2]     = point.x;
+			points[p*2 + 1] = point.y;
+		}
+		
+		if(gesture.centroid != null)
+		{
+			centroidX = gesture.centroid.x;
+			centroidY = gesture.centroid.y;
+		}
+		
+		indicativeAngle = gesture.indicativeAngle;
+		
+		if(gesture.scaleFactor != null)
+		{
+			scaleX = gesture.scaleFactor[0];
+			scaleY = gesture.scaleFactor[1];
+		}
+	}
+	
+	public void load(TemplateStore store, int index)
+	{	// Loads a stored template, so it can be scored against the other templates as if it were a candidate
+		System.arraycopy(store.points(index), store.offset(index), points, 0, resolution*2);
+		centroidX = store.centroids[index*2];
+		centroidY = store.centroids[index*2 + 1];
+		indicativeAngle = store.indicativeAngles[index];
+		scaleX = store.scaleFactors[index*2];
+		scaleY = store.scaleFactors[index*2 + 1];
+	}
+	
+	public void copyTo(Gesture gesture)
+	{	// Writes the processed result into a gesture, creating the PVectors the Gesture class expects
+		ArrayList<PVector> gesturePoints = new ArrayList<PVector>(resolution);
+		for(int p=0; p<resolution; p++)
+		{
+			gesturePoints.add(new PVector(points[p*2], points[p*2 + 1]));
+		}
+		
+		gesture.points = gesturePoints;
+		gesture.centroid = new PVector(centroidX, centroidY);
+		gesture.indicativeAngle = indicativeAngle;
+		gesture.scaleFactor = new float[] {scaleX, scaleY};
+		gesture.initialSize = new float[] {width, height};
+	}
+	
+	float[] features(int length)
+	{	// Returns the feature buffer, growing it if it holds fewer than length floats
+		if(features.length < length)
+		{
+			features = new float[length];
+		}
+		return features;
+	}
+	
+	void processInput()
+	{
+		if(metrics == null || !metrics.enabled)
+		{
+			resample();
+			calcCentroid();
+			indicativeAngle = findIndicativeAngle();
+			findScaleFactor();
+			zeroIndicativeAngleAndScale();
+			return;
+		}
+		
+		long time = System.nanoTime();
+		resample();
+		time = metrics.record(RecognitionMetrics.Stage.RESAMPLE, time);
+		calcCentroid();
+		time = metrics.record(RecognitionMetrics.Stage.CENTROID, time);
+		indicativeAngle = findIndicativeAngle();
+		time = metrics.record(RecognitionMetrics.Stage.INDICATIVE_ANGLE, time);
+		findScaleFactor();
+		time = metrics.record(RecognitionMetrics.Stage.SCALE_FACTOR, time);
+		zeroIndicativeAngleAndScale();
+		metrics.record(RecognitionMetrics.Stage.ROTATE_AND_SCALE, time);
+	}
+	
+	public boolean processStroke(float[] strokePoints, int count, double strokeLength, float minX, float maxX, float minY, float maxY)
+	{	// Processes a stroke whose length and bounds are already known (see GestureSession), skipping the passes
+		// that work them out. The points are read in place. Gives the same result as process() for the same points
+		if(count == 0)
+		{
+			return false;
+		}
+		
+		if(metrics == null || !metrics.enabled)
+		{
+			resample(strokePoints, count, strokeLength);
+			calcCentroid();
+			indicativeAngle = findIndicativeAngle();
+			setScaleFactor(maxX-minX, maxY-minY);
+			zeroIndicativeAngleAndScale();
+			return true;
+		}
+		
+		long time = System.nanoTime();
+		resample(strokePoints, count, strokeLength);
+		time = metrics.record(RecognitionMetrics.Stage.RESAMPLE, time);
+		calcCentroid();
+		time = metrics.record(RecognitionMetrics.Stage.CENTROID, time);
+		indicativeAngle = findIndicativeAngle();
+		time = metrics.record(RecognitionMetrics.Stage.INDICATIVE_ANGLE, time);
+		setScaleFactor(maxX-minX, maxY-minY);
+		time = metrics.record(RecognitionMetrics.Stage.SCALE_FACTOR, time);
+		zeroIndicativeAngleAndScale();
+		metrics.record(RecognitionMetrics.Stage.ROTATE_AND_SCALE, time);
+		return true;
+	}
+	
+	void resample()
+	{
+		resample(input, inputCount, strokeLength(input, inputCount));
+	}
+	
+	static double strokeLength(float[] input, int inputCount)
+	{
+		double originalLength = 0;
+		for(int p=0; p<inputCount-1; p++)
+		{
+			originalLength += distDouble(input[p*2], input[p*2 + 1], input[p*2 + 2], input[p*2 + 3]);
+		}
+		return originalLength;
+	}
+	
+	void resample(float[] input, int inputCount, double originalLength)
+	{	// Re-samples the input points to the set resolution, spaced evenly along the path. Past the last input point
+		// the path carries on in the direction of its last segment
+		double divisionLength = originalLength/(resolution-1);
+		
+		double curTraversedDist = 0; // Distance traversed since last division
+		int nextPointIndex = 1; // The next forward index to check from
+		float lastCheckedX = input[0];
+		float lastCheckedY = input[1];
+		float lastInputX = input[inputCount*2 - 2];
+		float lastInputY = input[inputCount*2 - 1];
+		
+		resampled[0] = input[0];
+		resampled[1] = input[1];
+		
+		for(int r=1; r<resolution; r++)
+		{
+			while(true)
+			{
+				if(nextPointIndex == inputCount)
+				{	// If there are no more points to traverse, continue along in the direction of the last available line segment
+					double neededDistance = divisionLength-curTraversedDist;
+					float lastDivisionX = lastInputX - lastCheckedX;
+					float lastDivisionY = lastInputY - lastCheckedY;
+					
+					// Same steps as PVector.setMag (normalise, then multiply)
+					float magnitude = (float)Math.sqrt(lastDivisionX*lastDivisionX + lastDivisionY*lastDivisionY);
+					if(magnitude != 0 && magnitude != 1)
+					{
+						lastDivisionX = lastDivisionX/magnitude;
+						lastDivisionY = lastDivisionY/magnitude;
+					}
+					lastDivisionX = lastDivisionX*(float)neededDistance;
+					lastDivisionY = lastDivisionY*(float)neededDistance;
+					
+					lastCheckedX = lastCheckedX + lastDivisionX;
+					lastCheckedY = lastCheckedY + lastDivisionY;
+					resampled[r*2]     = lastCheckedX;
+					resampled[r*2 + 1] = lastCheckedY;
+					curTraversedDist = 0;
+					break;
+				}
+				else
+				{
+					float nextX = input[nextPointIndex*2];
+					float nextY = input[nextPointIndex*2 + 1];
+					curTraversedDist += distDouble(lastCheckedX, lastCheckedY, nextX, nextY);
+					
+					if(curTraversedDist>=divisionLength)
+					{
+						double lerpAmount = divisionLength/curTraversedDist;
+						lastCheckedX = (float)((lerpAmount*(nextX-(double)lastCheckedX))+lastCheckedX);
+						lastCheckedY = (float)((lerpAmount*(nextY-(double)lastCheckedY))+lastCheckedY);
+						resampled[r*2]     = lastCheckedX;
+						resampled[r*2 + 1] = lastCheckedY;
+						curTraversedDist = 0;
+						break;
+					}
+					else if(curTraversedDist<divisionLength)
+					{
+						lastCheckedX = nextX;
+						lastCheckedY = nextY;
+						nextPointIndex++;
+					}
+				}
+			}
+		}
+	}
+	
+	void calcCentroid()
+	{
+		float sumX = 0;
+		float sumY = 0;
+		for(int p=0; p<resolution; p++)
+		{
+			sumX += resampled[p*2];
+			sumY += resampled[p*2 + 1];
+		}
+		centroidX = sumX/resolution;
+		centroidY = sumY/resolution;
+	}
+	
+	float findIndicativeAngle()
+	{
+		return (float)Math.atan2(centroidY-resampled[1], centroidX-resampled[0]);
+	}
+	
+	void zeroIndicativeAngleAndScale()
+	{	// Rotates the resampled points about the centroid by the opposite of the indicative angle, then scales them
+		float cos = PApplet.cos(-indicativeAngle);
+		float sin = PApplet.sin(-indicativeAngle);
+		for(int p=0; p<resolution; p++)
+		{
+			float x = resampled[p*2]-centroidX;
+			float y = resampled[p*2 + 1]-centroidY;
+			float rotatedX = x*cos - y*sin;
+			float rotatedY = x*sin + y*cos;
+			// The rotated point is moved back to the centroid before scaling about it, as the PVector stages did
+			points[p*2]     = ((rotatedX+centroidX)-centroidX)*scaleX;
+			points[p*2 + 1] = ((rotatedY+centroidY)-centroidY)*scaleY;
+		}
+	}
+	
+	void findScaleFactor()
+	{	// The scale factor is taken from the raw input points, the reference square length over their width and height
+		float minX = input[0];
+		float maxX = input[0];
+		float minY = input[1];
+		float maxY = input[1];
+		
+		for(int p=0; p<inputCount; p++)
+		{
+			float x = input[p*2];
+			float y = input[p*2 + 1];
+			if(x < minX)
+			{
+				minX = x;
+			}
+			if(x > maxX)
+			{
+				maxX = x;
+			}
+			if(y < minY)
+			{
+				minY = y;
+			}
+			if(y > maxY)
+			{
+				maxY = y;
+			}
+		}
+		
+		setScaleFactor(maxX-minX, maxY-minY);
+	}
+	
+	void setScaleFactor(float width, float height)
+	{
+		this.width  = width;
+		this.height = height;
+		scaleX = referenceSquareLength/width;
+		scaleY = referenceSquareLength/height;
+	}
+	
+	void ensureInputCapacity(int count)
+	{
+		if(input.length < count*2)
+		{
+			input = new float[Math.max(count*2, input.length*2)];
+		}
+	}
+	
+	static double distDouble(double x1, double y1, double x2, double y2)
+	{
+		return Math.sqrt( ((x1-x2)*(x1-x2)) + ((y1-y2)*(y1-y2)) );
+	}
+}
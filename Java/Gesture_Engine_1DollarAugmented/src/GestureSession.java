@@ -0,0 +1,104 @@
+// Recognition of a stroke while it is still being drawn
+// Points are fed in one at a time. The session keeps the stroke in a packed buffer together with its running
+// length and bounding box, so a provisional guess skips copying the points and the passes that measure them,
+// and only resamples and scores. A provisional guess is made every updateInterval points and is exactly what
+// recogniseGesture would give for the stroke so far. finish() gives the same answer as recogniseGesture on the
+// whole stroke.
+// A session belongs to the thread drawing the stroke and is not thread safe.
+import java.util.Arrays;
+
+public class GestureSession
+{
+	GestureEngine engine;
+	GesturePreprocessor preprocessor; // Buffers for provisional guesses, kept apart from the engine's per thread buffers
+	int updateInterval; // Points between provisional guesses, 0 to never make them
+	
+	float[] points; // Stroke points so far, packed as x,y pairs
+	double length;  // Length of the stroke so far, summed in the same order as GesturePreprocessor
+	int count;
+	int pointsSinceUpdate;
+	float minX;
+	float maxX;
+	float minY;
+	float maxY;
+	
+	GestureEngine.GestureResponse provisionalResponse; // Last provisional guess, null until one has been made
+	
+	GestureSession(GestureEngine engine, int updateInterval)
+	{
+		this.engine = engine;
+		this.updateInterval = updateInterval;
+		preprocessor = new GesturePreprocessor(engine.gestureResolution, engine.referenceSquareLength);
+		preprocessor.metrics = engine.metrics;
+		points = new float[256];
+	}
+	
+	public GestureEngine.GestureResponse addPoint(float x, float y)
+	{	// Adds a point to the stroke. Returns a provisional guess when one is due, otherwise null
+		if(count*2 == points.length)
+		{
+			points = Arrays.copyOf(points, points.length*2);
+		}
+		
+		points[count*2]     = x;
+		points[count*2 + 1] = y;
+		
+		if(count == 0)
+		{
+			length = 0;
+			minX = x;
+			maxX = x;
+			minY = y;
+			maxY = y;
+		}
+		else
+		{
+			length += GesturePreprocessor.distDouble(points[count*2 - 2], points[count*2 - 1], x, y);
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+		count++;
+		pointsSinceUpdate++;
+		
+		if(updateInterval > 0 && pointsSinceUpdate >= updateInterval && count > 1)
+		{
+			pointsSinceUpdate = 0;
+			return provisional();
+		}
+		return null;
+	}
+	
+	public GestureEngine.GestureResponse provisional()
+	{	// Makes a provisional guess from the points so far
+		if(count < 2 || !preprocessor.processStroke(points, count, length, minX, maxX, minY, maxY))
+		{
+			return null;
+		}
+		provisionalResponse = engine.recogniseGesture(preprocessor);
+		return provisionalResponse;
+	}
+	
+	public GestureEngine.GestureResponse finish()
+	{	// Recognises the finished stroke with the regular pipeline
+		return engine.recogniseGesture(points, count);
+	}
+	
+	public void reset()
+	{	// Starts a new stroke, keeping the buffers
+		count = 0;
+		pointsSinceUpdate = 0;
+		provisionalResponse = null;
+	}
+	
+	public int size()
+	{
+		return count;
+	}
+	
+	public double length()
+	{	// Length of the stroke so far
+		return length;
+	}
+}
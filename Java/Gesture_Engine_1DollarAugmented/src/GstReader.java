@@ -0,0 +1,317 @@
+// Streaming reader for .gst gesture files
+// Reads the JSON written by Gesture.saveAsJson (or GstWriter) in one pass over the raw bytes, putting every value
+// straight into fields and primitive arrays instead of building a JSONObject tree first. Numbers are converted the
+// same way as processing.data.JSONObject, so the result is identical to Gesture.loadFromJson(JSONObject).
+// Keys the reader does not know are skipped. A reader reuses its buffers and is not thread safe.
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import processing.core.PVector;
+
+public class GstReader
+{
+	String gestureName;
+	float indicativeAngle;
+	int gestureResolution;
+	float referenceSquareLength;
+	float[] centroid = new float[2];
+	float[] scaleFactor = new float[2];
+	float[] points = new float[128]; // Points packed as x,y pairs
+	int pointCount;
+	boolean hasPoints;
+	
+	byte[] data;
+	int position;
+	byte[] stringBuffer = new byte[64];
+	
+	public void read(Path file) throws IOException
+	{
+		read(Files.readAllBytes(file));
+	}
+	
+	public void read(byte[] data) throws IOException
+	{
+		this.data = data;
+		position = 0;
+		gestureName = null;
+		pointCount = 0;
+		hasPoints = false;
+		
+		expect('{');
+		if(!tryConsume('}'))
+		{
+			do
+			{
+				String key = readString();
+				expect(':');
+				readValue(key);
+			}
+			while(tryConsume(','));
+			expect('}');
+		}
+		this.data = null;
+		
+		if(gestureName == null || !hasPoints)
+		{	// Gesture.loadFromJson can not do without these either
+			throw new IOException("Missing gesture_name or points");
+		}
+	}
+	
+	public void copyTo(Gesture gesture)
+	{	// Fills a gesture the same way Gesture.loadFromJson does
+		gesture.gestureName = gestureName;
+		gesture.indicativeAngle = indicativeAngle;
+		gesture.gestureResolution = gestureResolution;
+		gesture.referenceSquareLength = referenceSquareLength;
+		gesture.centroid = new PVector(centroid[0], centroid[1]);
+		gesture.scaleFactor = new float[] {scaleFactor[0], scaleFactor[1]};
+		gesture.points = new ArrayList<PVector>(pointCount);
+		for(int p=0; p<pointCount; p++)
+		{
+			gesture.points.add(new PVector(points[p*2], points[p*2 + 1]));
+		}
+	}
+	
+	void readValue(String key) throws IOException
+	{
+		if(key.equals("gesture_name"))
+		{
+			gestureName = readString();
+		}
+		else if(key.equals("indicative_angle"))
+		{
+			indicativeAngle = (float)readNumber();
+		}
+		else if(key.equals("gesture_resolution"))
+		{
+			gestureResolution = (int)readNumber();
+		}
+		else if(key.equals("reference_square_length"))
+		{	// Read as an int by Gesture.loadFromJson
+			referenceSquareLength = (int)readNumber();
+		}
+		else if(key.equals("centroid"))
+		{
+			readPair(centroid, 0);
+		}
+		else if(key.equals("scale_factor"))
+		{
+			readPair(scaleFactor, 0);
+		}
+		else if(key.equals("points"))
+		{
+			readPoints();
+		}
+		else
+		{
+			skipValue();
+		}
+	}
+	
+	void readPoints() throws IOException
+	{
+		hasPoints = true;
+		expect('[');
+		if(tryConsume(']'))
+		{
+			return;
+		}
+		do
+		{
+			if(points.length < (pointCount+1)*2)
+			{
+				points = Arrays.copyOf(points, points.length*2);
+			}
+			readPair(points, pointCount*2);
+			pointCount++;
+		}
+		while(tryConsume(','));
+		expect(']');
+	}
+	
+	void readPair(float[] target, int offset) throws IOException
+	{
+		expect('[');
+		target[offset] = (float)readNumber();
+		expect(',');
+		target[offset+1] = (float)readNumber();
+		expect(']');
+	}
+	
+	double readNumber() throws IOException
+	{	// Numbers are read as doubles and narrowed by the caller, as JSONObject.getFloat does
+		skipWhitespace();
+		int start = position;
+		while(position < data.length)
+		{
+			byte b = data[position];
+			if((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E')
+			{
+				position++;
+			}
+			else
+			{
+				break;
+			}
+		}
+		if(start == position)
+		{
+			throw error("Expected a number");
+		}
+		return Double.parseDouble(new String(data, start, position-start, StandardCharsets.US_ASCII));
+	}
+	
+	String readString() throws IOException
+	{
+		expect('"');
+		int length = 0;
+		while(true)
+		{
+			if(position >= data.length)
+			{
+				throw error("Unterminated string");
+			}
+			byte b = data[position++];
+			if(b == '"')
+			{
+				break;
+			}
+			if(b == '\\')
+			{
+				if(position >= data.length)
+				{
+					throw error("Unterminated string");
+				}
+				byte escaped = data[position++];
+				switch(escaped)
+				{
+					case 'b': b = '\b'; break;
+					case 'f': b = '\f'; break;
+					case 'n': b = '\n'; break;
+					case 'r': b = '\r'; break;
+					case 't': b = '\t'; break;
+					case 'u':
+						String decoded = String.valueOf(readEscapedCharacter());
+						if(Character.isHighSurrogate(decoded.charAt(0)) && position+1 < data.length && data[position] == '\\' && data[position+1] == 'u')
+						{	// A character beyond the Basic Multilingual Plane is escaped as a pair of surrogates, which
+							// only encode to UTF-8 together. A lone surrogate still encodes as '?'
+							position += 2;
+							decoded += readEscapedCharacter();
+						}
+						byte[] encoded = decoded.getBytes(StandardCharsets.UTF_8);
+						for(int e=0; e<encoded.length; e++)
+						{
+							length = appendStringByte(length, encoded[e]);
+						}
+						continue;
+					default: b = escaped; break;
+				}
+			}
+			length = appendStringByte(length, b);
+		}
+		return new String(stringBuffer, 0, length, StandardCharsets.UTF_8);
+	}
+	
+	char readEscapedCharacter() throws IOException
+	{	// Reads the four hex digits of a unicode escape, after its backslash and u
+		if(position+4 > data.length)
+		{
+			throw error("Unterminated string");
+		}
+		char character = (char)Integer.parseInt(new String(data, position, 4, StandardCharsets.US_ASCII), 16);
+		position += 4;
+		return character;
+	}
+	
+	int appendStringByte(int length, byte b)
+	{
+		if(length == stringBuffer.length)
+		{
+			stringBuffer = Arrays.copyOf(stringBuffer, length*2);
+		}
+		stringBuffer[length] = b;
+		return length+1;
+	}
+	
+	void skipValue() throws IOException
+	{
+		skipWhitespace();
+		if(position >= data.length)
+		{
+			throw error("Expected a value");
+		}
+		
+		byte b = data[position];
+		if(b == '"')
+		{
+			readString();
+		}
+		else if(b == '{' || b == '[')
+		{
+			byte close = (b == '{') ? (byte)'}' : (byte)']';
+			position++;
+			if(tryConsume((char)close))
+			{
+				return;
+			}
+			do
+			{
+				if(b == '{')
+				{
+					readString();
+					expect(':');
+				}
+				skipValue();
+			}
+			while(tryConsume(','));
+			expect((char)close);
+		}
+		else if(b == 't' || b == 'f' || b == 'n')
+		{	// true, false or null
+			while(position < data.length && data[position] >= 'a' && data[position] <= 'z')
+			{
+				position++;
+			}
+		}
+		else
+		{
+			readNumber();
+		}
+	}
+	
+	void expect(char expected) throws IOException
+	{
+		if(!tryConsume(expected))
+		{
+			throw error("Expected '" + expected + "'");
+		}
+	}
+	
+	boolean tryConsume(char expected)
+	{
+		skipWhitespace();
+		if(position < data.length && data[position] == expected)
+		{
+			position++;
+			return true;
+		}
+		return false;
+	}
+	
+	void skipWhitespace()
+	{
+		while(position < data.length && (data[position] == ' ' || data[position] == '\n' || data[position] == '\r' || data[position] == '\t'))
+		{
+			position++;
+		}
+	}
+	
+	IOException error(String message)
+	{
+		return new IOException(message + " at byte " + position);
+	}
+}
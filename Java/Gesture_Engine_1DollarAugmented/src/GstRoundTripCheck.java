@@ -0,0 +1,72 @@
+// Checks that gesture names outside ASCII read back the same through GstReader
+// Usage: GstRoundTripCheck
+// Encodes a gesture with GstWriter under names with accents and with characters beyond the Basic Multilingual Plane,
+// once as written (raw UTF-8) and once with every non-ASCII character written as a unicode escape, the way other JSON
+// writers save them. Each is read back with GstReader and with processing.data.JSONObject, and both have to give
+// the name that was written. Prints one line per name and exits with status 1 if any did not.
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import processing.core.*;
+import processing.data.JSONObject;
+
+public class GstRoundTripCheck
+{
+	public static void main(String[] args) throws IOException
+	{
+		String[] names = {"CIRCLE", "CAF\u00c9", "SMILE_\ud83d\ude00", "CLEF_\ud834\udd1e_\ud834\udd1e"};
+		
+		GestureEngine engine = new GestureEngine();
+		ArrayList<PVector> stroke = new ArrayList<PVector>();
+		for(int p=0; p<32; p++)
+		{
+			stroke.add(new PVector(p*3, (float)Math.sin(p*0.3f)*20));
+		}
+		Gesture gesture = new Gesture(engine, stroke);
+		
+		int failures = 0;
+		GstReader reader = new GstReader();
+		for(String name : names)
+		{
+			gesture.gestureName = name;
+			String raw = GstWriter.encode(gesture);
+			String escaped = escapeNonAscii(raw);
+			
+			reader.read(raw.getBytes(StandardCharsets.UTF_8));
+			String rawRead = reader.gestureName;
+			reader.read(escaped.getBytes(StandardCharsets.UTF_8));
+			String escapedRead = reader.gestureName;
+			String jsonRead = JSONObject.parse(escaped).getString("gesture_name");
+			
+			boolean same = name.equals(rawRead) && name.equals(escapedRead) && name.equals(jsonRead);
+			if(!same)
+			{
+				failures++;
+			}
+			System.out.println(escapeNonAscii(name) + ": " + (same ? "ok" : "raw " + escapeNonAscii(rawRead) + ", escaped " + escapeNonAscii(escapedRead) + ", JSONObject " + escapeNonAscii(jsonRead)));
+		}
+		if(failures > 0)
+		{
+			System.exit(1);
+		}
+	}
+	
+	static String escapeNonAscii(String value)
+	{	// Every UTF-16 unit above ASCII as a unicode escape, so a surrogate pair becomes two of them
+		StringBuilder escaped = new StringBuilder();
+		for(int c=0; c<value.length(); c++)
+		{
+			char character = value.charAt(c);
+			if(character > 0x7f)
+			{
+				escaped.append(String.format("\\u%04x", (int)character));
+			}
+			else
+			{
+				escaped.append(character);
+			}
+		}
+		return escaped.toString();
+	}
+}
@@ -0,0 +1,133 @@
+// Compact writer for .gst gesture files
+// Writes the same keys and number formatting as Gesture.saveAsJson, but on a single line with no indentation,
+// straight from primitive values. Files written here load with both GstReader and Gesture.loadFromJson, and
+// every float reads back exactly.
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+public class GstWriter
+{
+	public static void write(Gesture gesture, Path file) throws IOException
+	{
+		Files.write(file, encode(gesture).getBytes(StandardCharsets.UTF_8));
+	}
+	
+	public static void write(TemplateStore store, int index, Path file) throws IOException
+	{
+		String json = encode(store.names[index], store.referenceSquareLength, store.resolution, store.scaleFactors[index*2], store.scaleFactors[index*2 + 1],
+				store.indicativeAngles[index], store.centroids[index*2], store.centroids[index*2 + 1], store.points(index), store.offset(index), store.resolution);
+		Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	public static void writeAtomically(Path file, byte[] content) throws IOException
+	{	// Writes to a temporary file next to the target and moves it into place, so readers never see half a file
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temporary, content);
+		try
+		{
+			Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(AtomicMoveNotSupportedException e)
+		{
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	public static String encode(Gesture gesture)
+	{
+		int pointCount = gesture.points.size();
+		float[] points = new float[pointCount*2];
+		for(int p=0; p<pointCount; p++)
+		{
+			points[p*2]     = gesture.points.get(p).x;
+			points[p*2 + 1] = gesture.points.get(p).y;
+		}
+		return encode(gesture.gestureName, gesture.referenceSquareLength, gesture.gestureResolution, gesture.scaleFactor[0], gesture.scaleFactor[1],
+				gesture.indicativeAngle, gesture.centroid.x, gesture.centroid.y, points, 0, pointCount);
+	}
+	
+	public static String encode(String gestureName, float referenceSquareLength, int gestureResolution, float scaleX, float scaleY,
+			float indicativeAngle, float centroidX, float centroidY, float[] points, int offset, int pointCount)
+	{
+		StringBuilder json = new StringBuilder(64 + pointCount*48);
+		json.append("{\"gesture_name\":");
+		appendString(json, gestureName);
+		json.append(",\"reference_square_length\":");
+		appendNumber(json, referenceSquareLength);
+		json.append(",\"gesture_resolution\":").append(gestureResolution);
+		json.append(",\"scale_factor\":[");
+		appendNumber(json, scaleX);
+		json.append(',');
+		appendNumber(json, scaleY);
+		json.append("],\"indicative_angle\":");
+		appendNumber(json, indicativeAngle);
+		json.append(",\"centroid\":[");
+		appendNumber(json, centroidX);
+		json.append(',');
+		appendNumber(json, centroidY);
+		json.append("],\"points\":[");
+		for(int p=0; p<pointCount; p++)
+		{
+			if(p > 0)
+			{
+				json.append(',');
+			}
+			json.append('[');
+			appendNumber(json, points[offset + p*2]);
+			json.append(',');
+			appendNumber(json, points[offset + p*2 + 1]);
+			json.append(']');
+		}
+		json.append("]}");
+		return json.toString();
+	}
+	
+	static void appendNumber(StringBuilder json, float value)
+	{	// Floats are written as the double they widen to, as processing.data.JSONObject does, so they read back exactly
+		if(Float.isNaN(value) || Float.isInfinite(value))
+		{
+			throw new IllegalArgumentException("JSON does not allow non-finite numbers");
+		}
+		
+		String number = Double.toString(value);
+		if(number.endsWith(".0"))
+		{
+			number = number.substring(0, number.length()-2);
+		}
+		json.append(number);
+	}
+	
+	static void appendString(StringBuilder json, String value)
+	{
+		json.append('"');
+		for(int c=0; c<value.length(); c++)
+		{
+			char character = value.charAt(c);
+			switch(character)
+			{
+				case '"':  json.append("\\\""); break;
+				case '\\': json.append("\\\\"); break;
+				case '\b': json.append("\\b"); break;
+				case '\f': json.append("\\f"); break;
+				case '\n': json.append("\\n"); break;
+				case '\r': json.append("\\r"); break;
+				case '\t': json.append("\\t"); break;
+				default:
+					if(character < ' ')
+					{
+						json.append(String.format("\\u%04x", (int)character));
+					}
+					else
+					{
+						json.append(character);
+					}
+			}
+		}
+		json.append('"');
+	}
+}
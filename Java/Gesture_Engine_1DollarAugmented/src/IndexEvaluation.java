@@ -0,0 +1,105 @@
+// Measures how closely a template index follows a full scan of the template store
+// Every sample stroke is ranked twice, once by scoring every template and once through the index, and the two
+// top k rankings are compared: how often the best gesture name agrees, what share of the full scan's top k
+// templates the index also found, and how long each took.
+import java.util.ArrayList;
+import java.util.List;
+
+import processing.core.*;
+
+public class IndexEvaluation
+{
+	int k;
+	int queries;
+	int bestNameAgreements; // Queries where the index's best template has the same gesture name as the full scan's
+	int exactTemplates;     // Templates in the full scan rankings
+	int recalledTemplates;  // Of those, the ones the index also ranked
+	long exactNanos;
+	long indexedNanos;
+	
+	IndexEvaluation(int k)
+	{
+		this.k = k;
+	}
+	
+	public static IndexEvaluation run(GestureEngine engine, TemplateIndex index, List<ArrayList<PVector>> strokes, int k)
+	{	// Builds the index over the engine's templates, then ranks every stroke both ways
+		TemplateSnapshot snapshot;
+		synchronized(engine)
+		{	// The index is only evaluated, never set on the engine, so it gets a snapshot of its own
+			index.build(engine);
+			snapshot = new TemplateSnapshot(engine, engine.templateStore.snapshot(), engine.recognizer, index);
+		}
+		IndexEvaluation evaluation = new IndexEvaluation(k);
+		GesturePreprocessor candidate = new GesturePreprocessor(engine.gestureResolution, engine.referenceSquareLength);
+		TopKCollector exact = new TopKCollector(k);
+		TopKCollector indexed = new TopKCollector(k);
+		
+		for(ArrayList<PVector> stroke : strokes)
+		{
+			if(!candidate.process(stroke))
+			{
+				continue;
+			}
+			snapshot.recognizer.prepareCandidate(candidate);
+			
+			long startTime = System.nanoTime();
+			exact.reset(k);
+			snapshot.scanTemplates(candidate, 0, snapshot.store.size, exact);
+			exact.sort();
+			long exactTime = System.nanoTime();
+			indexed.reset(k);
+			index.search(snapshot, candidate, indexed);
+			indexed.sort();
+			long indexedTime = System.nanoTime();
+			
+			evaluation.add(snapshot.store, exact, indexed);
+			evaluation.exactNanos += exactTime-startTime;
+			evaluation.indexedNanos += indexedTime-exactTime;
+		}
+		return evaluation;
+	}
+	
+	void add(TemplateStore store, TopKCollector exact, TopKCollector indexed)
+	{
+		queries++;
+		if(exact.size() > 0 && indexed.size() > 0 && store.classIds[exact.index(0)] == store.classIds[indexed.index(0)])
+		{
+			bestNameAgreements++;
+		}
+		
+		exactTemplates += exact.size();
+		for(int e=0; e<exact.size(); e++)
+		{
+			for(int i=0; i<indexed.size(); i++)
+			{
+				if(indexed.index(i) == exact.index(e))
+				{
+					recalledTemplates++;
+					break;
+				}
+			}
+		}
+	}
+	
+	public float bestNameAgreement()
+	{	// Share of queries (0 to 1) where the index and the full scan agree on the best gesture name
+		return queries == 0 ? 1 : bestNameAgreements/(float)queries;
+	}
+	
+	public float recall()
+	{	// Share (0 to 1) of the full scan's top k templates that the index also returned
+		return exactTemplates == 0 ? 1 : recalledTemplates/(float)exactTemplates;
+	}
+	
+	public float speedup()
+	{
+		return indexedNanos == 0 ? 0 : exactNanos/(float)indexedNanos;
+	}
+	
+	public void printReport()
+	{
+		System.out.println(queries + " queries, best name agreement " + (bestNameAgreement()*100) + "%, recall@" + k + " " + (recall()*100) + "%");
+		System.out.println("Full scan " + (exactNanos/1000000) + "ms, index " + (indexedNanos/1000000) + "ms (" + speedup() + "x)");
+	}
+}
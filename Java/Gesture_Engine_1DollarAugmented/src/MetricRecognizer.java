@@ -0,0 +1,8 @@
+// Recognizer whose distance is a metric over the normalised templates: symmetric, zero between identical
+// gestures, and obeying the triangle inequality. Metric indexes such as VantagePointIndex rely on this to
+// skip templates without scoring them, and only work with recognizers that implement it.
+// Path distance is a sum of point distances, so it qualifies. Protractor only lines the vectors up within a
+// quarter turn and point cloud matching is greedy and one sided, so neither does.
+public interface MetricRecognizer extends Recognizer
+{
+}
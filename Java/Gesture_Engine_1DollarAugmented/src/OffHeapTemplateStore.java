@@ -0,0 +1,394 @@
+// Template store that keeps points and recognizer features outside the Java heap
+// With millions of templates the packed arrays of TemplateStore become most of the heap, which lengthens every
+// garbage collection and has to be covered by the heap size. Here they are held in direct ByteBuffers instead, or
+// in memory mapped regions of a backing file, split over chunks of at most CHUNK_BYTES as a buffer is indexed by int.
+// Templates are appended in place. Reading one copies its floats into a buffer of the calling thread, which the
+// recognizers then score as usual. The Foreign Memory API (MemorySegment) would let them read the memory directly,
+// but it needs a far newer Java than this code base targets.
+// What stays on the heap is the per template metadata of TemplateStore (class, angle, centroid and scale, about
+// 40 bytes a template). Names are shared per gesture class and gestures are made on demand and not kept.
+// Direct buffers count against -XX:MaxDirectMemorySize (the maximum heap size unless set). A file backed store
+// leaves paging to the operating system and is only limited by disk and address space. The backing files hold
+// raw floats for the life of the store only, use GestureEngine.saveGestureBundle to keep templates.
+// Snapshots map the same file pages as the store, so data they can see is never written over. Compaction
+// (GestureEngine.compactTemplates) moves the templates to <backing file>.1, .2 and so on, and clear or a new
+// recognizer (setFeatureStride) start the points or features over in a file of their own (<file>.v1, .v2 and so on).
+// Files a store moved away from are deleted unless they are the ones given to the constructor. Mappings stay
+// readable after their file is deleted on most systems, so snapshots still reading them are not affected.
+// Use with GestureEngine.setTemplateStore.
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class OffHeapTemplateStore extends TemplateStore
+{
+	static final int CHUNK_BYTES = 1 << 30; // Most bytes held by one buffer
+	
+	Region pointRegion;
+	Region featureRegion;
+	FileChannel pointFile;   // Backing file of the points, null when they are held in direct memory
+	FileChannel featureFile; // Backing file of the features, next to the points file
+	String backingFile;      // Path given to the constructor, null when held in direct memory
+	int generation;          // Times the templates have been compacted into a new file, 0 for the file given
+	int pointVersion;        // Times the points have started over in a new file, 0 for the first one
+	int featureVersion;      // Same for the features
+	
+	// Templates are read into these, one per thread as recognizers are called from several threads
+	ThreadLocal<float[]> pointBuffers = new ThreadLocal<float[]>();
+	ThreadLocal<float[]> featureBuffers = new ThreadLocal<float[]>();
+	
+	public OffHeapTemplateStore(int resolution, float referenceSquareLength)
+	{
+		super(resolution, referenceSquareLength, 1);
+		points = new float[0];
+		pointRegion = new Region(stride, null);
+		featureRegion = new Region(0, null);
+		pointRegion.ensureCapacity(capacity());
+	}
+	
+	public OffHeapTemplateStore(int resolution, float referenceSquareLength, String backingFile) throws IOException
+	{	// Maps points to backingFile and features to backingFile.features. Both are overwritten
+		this(resolution, referenceSquareLength, backingFile, 0);
+	}
+	
+	OffHeapTemplateStore(int resolution, float referenceSquareLength, String backingFile, int generation) throws IOException
+	{
+		super(resolution, referenceSquareLength, 1);
+		points = new float[0];
+		this.backingFile = backingFile;
+		this.generation = generation;
+		pointFile = new RandomAccessFile(pointPath(), "rw").getChannel();
+		featureFile = new RandomAccessFile(featurePath(), "rw").getChannel();
+		pointRegion = new Region(stride, pointFile);
+		featureRegion = new Region(0, featureFile);
+		pointRegion.ensureCapacity(capacity());
+	}
+	
+	public boolean add(Gesture gesture)
+	{
+		if(!super.add(gesture))
+		{
+			return false;
+		}
+		int index = size-1;
+		names[index] = classNames.get(classIds[index]);
+		gestures[index] = null;
+		return true;
+	}
+	
+	public Gesture gesture(int index)
+	{	// Made from the stored template every time, so gestures do not pile up on the heap
+		return new Gesture(this, index);
+	}
+	
+	public float[] points(int index)
+	{	// Returns a copy of the template's points, only valid until the next call to points on the same thread
+		float[] buffer = buffer(pointBuffers, stride);
+		pointRegion.read(index, buffer);
+		return buffer;
+	}
+	
+	public int offset(int index)
+	{
+		return 0;
+	}
+	
+	public void setPoints(int index, float[] source, int sourceOffset)
+	{
+		pointRegion.write(index, source, sourceOffset);
+	}
+	
+	public float[] features(int index)
+	{	// Returns a copy of the template's features, only valid until the next call to features on the same thread
+		float[] buffer = buffer(featureBuffers, featureStride);
+		featureRegion.read(index, buffer);
+		return buffer;
+	}
+	
+	public int featureOffset(int index)
+	{
+		return 0;
+	}
+	
+	public void setFeatures(int index, float[] source, int sourceOffset)
+	{
+		featureRegion.write(index, source, sourceOffset);
+	}
+	
+	public void setFeatureStride(int featureStride)
+	{	// Features already mapped may be read by snapshots with the recognizer they were made for, so a file backed
+		// store writes the new ones to another file
+		if(featureFile != null && featureRegion.bytes() > 0)
+		{
+			String previous = featurePath();
+			featureVersion++;
+			featureFile = replaceFile(featureFile, previous, featurePath(), featureVersion > 1);
+		}
+		this.featureStride = featureStride;
+		featureRegion = new Region(featureStride, featureFile);
+		featureRegion.ensureCapacity(capacity());
+	}
+	
+	void growTemplateData(int newCapacity)
+	{
+		pointRegion.ensureCapacity(newCapacity);
+		featureRegion.ensureCapacity(newCapacity);
+	}
+	
+	void allocateTemplateData(int capacity)
+	{	// Snapshots taken before may still read the templates, so a file backed store starts over in new files
+		if(pointFile != null)
+		{
+			String previous = pointPath();
+			pointVersion++;
+			pointFile = replaceFile(pointFile, previous, pointPath(), pointVersion > 1);
+			if(featureRegion.bytes() > 0)
+			{
+				previous = featurePath();
+				featureVersion++;
+				featureFile = replaceFile(featureFile, previous, featurePath(), featureVersion > 1);
+			}
+		}
+		pointRegion = new Region(stride, pointFile);
+		featureRegion = new Region(featureStride, featureFile);
+		pointRegion.ensureCapacity(capacity);
+		featureRegion.ensureCapacity(capacity);
+	}
+	
+	TemplateStore newEmptyCopy()
+	{	// A file backed store moves on to a file of its own, as snapshots may still be reading this one's
+		if(pointFile == null)
+		{
+			return new OffHeapTemplateStore(resolution, referenceSquareLength);
+		}
+		try
+		{
+			return new OffHeapTemplateStore(resolution, referenceSquareLength, backingFile, generation+1);
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException("Could not open a backing file to compact " + backingFile + " into", e);
+		}
+	}
+	
+	void release()
+	{	// Mappings stay readable after their file is closed, so snapshots still reading this store are not affected
+		try
+		{
+			close();
+			if(generation > 0 || pointVersion > 0)
+			{
+				Files.deleteIfExists(Paths.get(pointPath()));
+			}
+			if(generation > 0 || featureVersion > 0)
+			{
+				Files.deleteIfExists(Paths.get(featurePath()));
+			}
+		}
+		catch(IOException e)
+		{	// Left for the next run to overwrite
+		}
+	}
+	
+	FileChannel replaceFile(FileChannel previous, String previousPath, String path, boolean deletePrevious)
+	{	// Opens a backing file in place of another, which is closed and, unless given to the constructor, deleted
+		try
+		{
+			FileChannel file = new RandomAccessFile(path, "rw").getChannel();
+			previous.close();
+			if(generation > 0 || deletePrevious)
+			{
+				Files.deleteIfExists(Paths.get(previousPath));
+			}
+			return file;
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException("Could not open backing file " + path, e);
+		}
+	}
+	
+	String filePath()
+	{
+		return (generation == 0) ? backingFile : backingFile + "." + generation;
+	}
+	
+	String pointPath()
+	{
+		return (pointVersion == 0) ? filePath() : filePath() + ".v" + pointVersion;
+	}
+	
+	String featurePath()
+	{
+		return (featureVersion == 0) ? filePath() + ".features" : filePath() + ".features.v" + featureVersion;
+	}
+	
+	public long offHeapBytes()
+	{	// Memory held outside the heap for points and features, including room for templates yet to be added
+		return pointRegion.bytes() + featureRegion.bytes();
+	}
+	
+	public void close() throws IOException
+	{	// Closes the backing files. The mapped memory itself is released once the store is garbage collected
+		if(pointFile != null)
+		{
+			pointFile.close();
+			featureFile.close();
+		}
+	}
+	
+	static float[] buffer(ThreadLocal<float[]> buffers, int length)
+	{
+		float[] buffer = buffers.get();
+		if(buffer == null || buffer.length != length)
+		{
+			buffer = new float[length];
+			buffers.set(buffer);
+		}
+		return buffer;
+	}
+	
+	static class Region
+	{	// slotSize floats for every template, slotsPerChunk templates to a chunk. Every chunk but the last holds
+		// slotsPerChunk templates, the last one is replaced by a bigger one as the store grows
+		int slotSize;
+		int slotsPerChunk;
+		FileChannel file;
+		volatile FloatBuffer[] chunks = new FloatBuffer[0];
+		
+		// Every thread reads through its own duplicates, as a bulk get moves the position of the buffer it is called on
+		ThreadLocal<Views> views = new ThreadLocal<Views>();
+		
+		Region(int slotSize, FileChannel file)
+		{
+			this.slotSize = slotSize;
+			this.slotsPerChunk = Math.max(1, CHUNK_BYTES/4/Math.max(slotSize, 1));
+			this.file = file;
+		}
+		
+		synchronized void ensureCapacity(int capacity)
+		{
+			if(slotSize == 0 || capacity <= capacity())
+			{
+				return;
+			}
+			
+			FloatBuffer[] grown = Arrays.copyOf(chunks, (capacity + slotsPerChunk - 1)/slotsPerChunk);
+			for(int c=0; c<grown.length; c++)
+			{
+				int chunkSlots = Math.min(slotsPerChunk, capacity - c*slotsPerChunk);
+				if(grown[c] == null || grown[c].capacity() < chunkSlots*slotSize)
+				{
+					grown[c] = allocate(c, chunkSlots, grown[c]);
+				}
+			}
+			chunks = grown;
+		}
+		
+		FloatBuffer allocate(int chunk, int chunkSlots, FloatBuffer previous)
+		{
+			long bytes = (long)chunkSlots*slotSize*4;
+			if(file != null)
+			{	// The file keeps what was written through the previous, smaller mapping
+				try
+				{
+					long position = (long)chunk*slotsPerChunk*slotSize*4;
+					return file.map(FileChannel.MapMode.READ_WRITE, position, bytes).order(ByteOrder.nativeOrder()).asFloatBuffer();
+				}
+				catch(IOException e)
+				{
+					throw new IllegalStateException("Could not map " + bytes + " bytes of template data", e);
+				}
+			}
+			
+			FloatBuffer buffer = ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			if(previous != null)
+			{
+				FloatBuffer source = previous.duplicate();
+				source.clear();
+				buffer.put(source);
+				buffer.clear();
+			}
+			return buffer;
+		}
+		
+		int capacity()
+		{
+			FloatBuffer[] current = chunks;
+			if(current.length == 0)
+			{
+				return 0;
+			}
+			return (current.length-1)*slotsPerChunk + current[current.length-1].capacity()/slotSize;
+		}
+		
+		long bytes()
+		{
+			long bytes = 0;
+			for(FloatBuffer chunk : chunks)
+			{
+				bytes += (long)chunk.capacity()*4;
+			}
+			return bytes;
+		}
+		
+		void read(int index, float[] target)
+		{
+			if(slotSize == 0)
+			{
+				return;
+			}
+			FloatBuffer view = view(index/slotsPerChunk);
+			view.position((index%slotsPerChunk)*slotSize);
+			view.get(target, 0, slotSize);
+		}
+		
+		void write(int index, float[] source, int sourceOffset)
+		{
+			if(slotSize == 0)
+			{
+				return;
+			}
+			FloatBuffer chunk = chunks[index/slotsPerChunk];
+			int position = (index%slotsPerChunk)*slotSize;
+			for(int f=0; f<slotSize; f++)
+			{
+				chunk.put(position + f, source[sourceOffset + f]);
+			}
+		}
+		
+		FloatBuffer view(int chunk)
+		{
+			FloatBuffer[] current = chunks;
+			Views threadViews = views.get();
+			if(threadViews == null || threadViews.chunks != current)
+			{	// Made again whenever the chunks change, which only happens while the store grows
+				threadViews = new Views(current);
+				views.set(threadViews);
+			}
+			return threadViews.views[chunk];
+		}
+	}
+	
+	static class Views
+	{
+		FloatBuffer[] chunks;
+		FloatBuffer[] views;
+		
+		Views(FloatBuffer[] chunks)
+		{
+			this.chunks = chunks;
+			views = new FloatBuffer[chunks.length];
+			for(int c=0; c<chunks.length; c++)
+			{
+				views[c] = chunks[c].duplicate();
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+// The $1 matching method: average distance between corresponding points of the normalised paths
+import processing.core.*;
+
+public class PathDistanceRecognizer implements MetricRecognizer
+{
+	public int featureStride(TemplateStore store)
+	{	// Scores straight from the normalised points, so no extra features are needed
+		return 0;
+	}
+	
+	public void prepareTemplate(TemplateStore store, int index)
+	{
+	}
+	
+	public void prepareCandidate(GesturePreprocessor candidate)
+	{
+	}
+	
+	public float distance(GesturePreprocessor candidate, TemplateStore store, int index, float bound)
+	{
+		return pathDistance(candidate.points, store.points(index), store.offset(index), store.stride, bound);
+	}
+	
+	public float toScore(TemplateStore store, float distance)
+	{	// Correlation score between candidate and template
+		float avgDistance = distance/store.resolution;
+		return (1-(avgDistance/(0.5f*PApplet.dist(0f,0f,store.referenceSquareLength,store.referenceSquareLength))))*100f;
+	}
+	
+	static float pathDistance(float[] candidatePoints, float[] templatePoints, int offset, int stride, float bound)
+	{
+		return pathDistance(candidatePoints, 0, templatePoints, offset, stride, bound);
+	}
+	
+	static float pathDistance(float[] candidatePoints, int candidateOffset, float[] templatePoints, int offset, int stride, float bound)
+	{	// Sums the distances between corresponding points. Stops as soon as the sum passes bound and returns the partial sum
+		float distanceSum = 0;
+		for(int p=0; p<stride; p+=2)
+		{
+			distanceSum += PApplet.dist(templatePoints[offset+p], templatePoints[offset+p+1], candidatePoints[candidateOffset+p], candidatePoints[candidateOffset+p+1]);
+			if(distanceSum > bound)
+			{
+				return distanceSum;
+			}
+		}
+		return distanceSum;
+	}
+}
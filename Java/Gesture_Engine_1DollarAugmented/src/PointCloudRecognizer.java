@@ -0,0 +1,267 @@
+// The $P point cloud matching method (Vatavu, Anthony & Wobbrock, 2012), with the lookup table lower bounds of $Q (2018)
+// Gestures are compared as unordered clouds of points, so the direction and start point of a stroke do not matter.
+// The $1 normalisation (indicative angle rotation and per axis scaling) is undone first, then each cloud is
+// scaled uniformly and centred on its centroid. Every template also keeps a lookup table giving, for each cell
+// of a grid over the cloud, the template point closest to that cell. With it a cheap lower bound of the
+// matching cost can be worked out for every start point, and the greedy matching is only run where the
+// bound can still beat the best distance found so far.
+// As in $Q the lookup table gives the nearest point to a cell rather than to the exact position, so the bound
+// is a close estimate rather than a strict one.
+public class PointCloudRecognizer implements Recognizer
+{
+	static final int LOOKUP_SIZE = 32; // Lookup table cells along each side of the grid over [-1,1]
+	
+	// Scratch space for the greedy matching, one per thread as distance is called from several threads
+	ThreadLocal<MatchBuffers> matchBuffers = new ThreadLocal<MatchBuffers>();
+	
+	public int featureStride(TemplateStore store)
+	{	// Normalised cloud followed by its lookup table
+		return store.stride + LOOKUP_SIZE*LOOKUP_SIZE;
+	}
+	
+	public void prepareTemplate(TemplateStore store, int index)
+	{
+		float[] features = new float[store.featureStride];
+		normalizeCloud(store.points(index), store.offset(index), store.resolution, store.indicativeAngles[index], store.scaleFactors[index*2], store.scaleFactors[index*2 + 1], features, 0);
+		computeLookupTable(features, 0, store.resolution, features, store.stride);
+		store.setFeatures(index, features, 0);
+	}
+	
+	public void prepareCandidate(GesturePreprocessor candidate)
+	{
+		int stride = candidate.resolution*2;
+		float[] features = candidate.features(stride + LOOKUP_SIZE*LOOKUP_SIZE);
+		normalizeCloud(candidate.points, 0, candidate.resolution, candidate.indicativeAngle, candidate.scaleX, candidate.scaleY, features, 0);
+		computeLookupTable(features, 0, candidate.resolution, features, stride);
+	}
+	
+	public float distance(GesturePreprocessor candidate, TemplateStore store, int index, float bound)
+	{	// Greedy cloud matching from every step-th start point, in both directions
+		int n = store.resolution;
+		int step = (int)Math.floor(Math.sqrt(n));
+		float[] candidateFeatures = candidate.features;
+		float[] templateFeatures  = store.features(index);
+		int templateOffset        = store.featureOffset(index);
+		MatchBuffers buffers      = matchBuffers(n, step);
+		
+		computeLowerBounds(candidateFeatures, 0, templateFeatures, templateOffset, templateOffset + store.stride, n, step, buffers.lowerBoundsA, buffers.summedDistances);
+		computeLowerBounds(templateFeatures, templateOffset, candidateFeatures, 0, store.stride, n, step, buffers.lowerBoundsB, buffers.summedDistances);
+		
+		float best = Float.POSITIVE_INFINITY;
+		float minSoFar = bound;
+		for(int start=0, j=0; start<n; start+=step, j++)
+		{
+			if(buffers.lowerBoundsA[j] <= minSoFar)
+			{
+				float distance = cloudDistance(candidateFeatures, 0, templateFeatures, templateOffset, n, start, minSoFar, buffers.unmatched);
+				if(distance <= minSoFar)
+				{
+					minSoFar = distance;
+					best = Math.min(best, distance);
+				}
+			}
+			if(buffers.lowerBoundsB[j] <= minSoFar)
+			{
+				float distance = cloudDistance(templateFeatures, templateOffset, candidateFeatures, 0, n, start, minSoFar, buffers.unmatched);
+				if(distance <= minSoFar)
+				{
+					minSoFar = distance;
+					best = Math.min(best, distance);
+				}
+			}
+		}
+		
+		// If no start point got under the bound, any value above it tells the caller the template was abandoned
+		return best <= bound ? best : Math.nextUp(bound);
+	}
+	
+	public float toScore(TemplateStore store, float distance)
+	{	// Turns the weighted sum of squared distances back into an average distance within the unit sized cloud
+		int n = store.resolution;
+		float weightSum = n*(n+1)/2f;
+		return Math.max(0, 1-(float)Math.sqrt(distance/weightSum))*100f;
+	}
+	
+	static float cloudDistance(float[] cloudA, int offsetA, float[] cloudB, int offsetB, int n, int start, float minSoFar, int[] unmatched)
+	{	// Matches each point of A, going round from start, to its closest unmatched point of B. Earlier matches weigh more
+		for(int p=0; p<n; p++)
+		{
+			unmatched[p] = p;
+		}
+		int unmatchedCount = n;
+		
+		float sum = 0;
+		int weight = n;
+		int i = start;
+		do
+		{
+			float x = cloudA[offsetA + i*2];
+			float y = cloudA[offsetA + i*2 + 1];
+			
+			int closest = 0;
+			float minDistance = Float.POSITIVE_INFINITY;
+			for(int u=0; u<unmatchedCount; u++)
+			{
+				int p = unmatched[u];
+				float dx = cloudB[offsetB + p*2]-x;
+				float dy = cloudB[offsetB + p*2 + 1]-y;
+				float distance = dx*dx + dy*dy;
+				if(distance < minDistance)
+				{
+					minDistance = distance;
+					closest = u;
+				}
+			}
+			unmatchedCount--;
+			unmatched[closest] = unmatched[unmatchedCount];
+			
+			sum += weight*minDistance;
+			if(sum > minSoFar)
+			{
+				return sum;
+			}
+			weight--;
+			i = (i+1)%n;
+		}
+		while(i != start);
+		
+		return sum;
+	}
+	
+	static void computeLowerBounds(float[] cloudA, int offsetA, float[] cloudB, int offsetB, int lookupOffsetB, int n, int step, float[] lowerBounds, float[] summedDistances)
+	{	// Estimates the matching cost of A against B for every step-th start point, using B's lookup table to match each point
+		lowerBounds[0] = 0;
+		for(int i=0; i<n; i++)
+		{
+			float x = cloudA[offsetA + i*2];
+			float y = cloudA[offsetA + i*2 + 1];
+			int closest = (int)cloudB[lookupOffsetB + lookupCell(x)*LOOKUP_SIZE + lookupCell(y)];
+			float dx = cloudB[offsetB + closest*2]-x;
+			float dy = cloudB[offsetB + closest*2 + 1]-y;
+			float distance = dx*dx + dy*dy;
+			
+			summedDistances[i] = (i == 0) ? distance : summedDistances[i-1]+distance;
+			lowerBounds[0] += (n-i)*distance;
+		}
+		
+		// Moving the start point forward by i lowers the weight of every point by i, and gives the first i points the highest weights
+		for(int i=step, j=1; i<n; i+=step, j++)
+		{
+			lowerBounds[j] = lowerBounds[0] + i*summedDistances[n-1] - n*summedDistances[i-1];
+		}
+	}
+	
+	static void normalizeCloud(float[] points, int offset, int n, float indicativeAngle, float scaleX, float scaleY, float[] cloud, int cloudOffset)
+	{	// Undoes the per axis scaling and indicative angle rotation, then scales uniformly into the unit square and centres the cloud
+		float cos = (float)Math.cos(indicativeAngle);
+		float sin = (float)Math.sin(indicativeAngle);
+		float minX = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY;
+		float minY = Float.POSITIVE_INFINITY;
+		float maxY = Float.NEGATIVE_INFINITY;
+		
+		for(int p=0; p<n; p++)
+		{
+			float x = unscale(points[offset + p*2], scaleX);
+			float y = unscale(points[offset + p*2 + 1], scaleY);
+			float rotatedX = x*cos - y*sin;
+			float rotatedY = x*sin + y*cos;
+			cloud[cloudOffset + p*2]     = rotatedX;
+			cloud[cloudOffset + p*2 + 1] = rotatedY;
+			minX = Math.min(minX, rotatedX);
+			maxX = Math.max(maxX, rotatedX);
+			minY = Math.min(minY, rotatedY);
+			maxY = Math.max(maxY, rotatedY);
+		}
+		
+		float size = Math.max(maxX-minX, maxY-minY);
+		if(size == 0)
+		{
+			size = 1;
+		}
+		
+		float sumX = 0;
+		float sumY = 0;
+		for(int p=0; p<n; p++)
+		{
+			cloud[cloudOffset + p*2]     = (cloud[cloudOffset + p*2]-minX)/size;
+			cloud[cloudOffset + p*2 + 1] = (cloud[cloudOffset + p*2 + 1]-minY)/size;
+			sumX += cloud[cloudOffset + p*2];
+			sumY += cloud[cloudOffset + p*2 + 1];
+		}
+		
+		float centroidX = sumX/n;
+		float centroidY = sumY/n;
+		for(int p=0; p<n; p++)
+		{
+			cloud[cloudOffset + p*2]     -= centroidX;
+			cloud[cloudOffset + p*2 + 1] -= centroidY;
+		}
+	}
+	
+	static float unscale(float value, float scale)
+	{	// A stroke with no width or height has an infinite scale factor, which leaves nothing to undo
+		float unscaled = value/scale;
+		return (Float.isNaN(unscaled) || Float.isInfinite(unscaled)) ? 0 : unscaled;
+	}
+	
+	static void computeLookupTable(float[] cloud, int offset, int n, float[] lookup, int lookupOffset)
+	{	// For the centre of every grid cell, stores the index of the closest cloud point
+		for(int cellX=0; cellX<LOOKUP_SIZE; cellX++)
+		{
+			for(int cellY=0; cellY<LOOKUP_SIZE; cellY++)
+			{
+				float x = ((cellX+0.5f)/LOOKUP_SIZE)*2-1;
+				float y = ((cellY+0.5f)/LOOKUP_SIZE)*2-1;
+				
+				int closest = 0;
+				float minDistance = Float.POSITIVE_INFINITY;
+				for(int p=0; p<n; p++)
+				{
+					float dx = cloud[offset + p*2]-x;
+					float dy = cloud[offset + p*2 + 1]-y;
+					float distance = dx*dx + dy*dy;
+					if(distance < minDistance)
+					{
+						minDistance = distance;
+						closest = p;
+					}
+				}
+				lookup[lookupOffset + cellX*LOOKUP_SIZE + cellY] = closest;
+			}
+		}
+	}
+	
+	static int lookupCell(float value)
+	{	// Grid cell of a cloud coordinate, the grid spans [-1,1]
+		int cell = (int)((value+1)/2*LOOKUP_SIZE);
+		return Math.max(0, Math.min(LOOKUP_SIZE-1, cell));
+	}
+	
+	MatchBuffers matchBuffers(int n, int step)
+	{
+		MatchBuffers buffers = matchBuffers.get();
+		if(buffers == null || buffers.unmatched.length < n)
+		{
+			buffers = new MatchBuffers(n, step);
+			matchBuffers.set(buffers);
+		}
+		return buffers;
+	}
+	
+	static class MatchBuffers
+	{
+		int[] unmatched;
+		float[] summedDistances;
+		float[] lowerBoundsA; // Candidate matched against the template
+		float[] lowerBoundsB; // Template matched against the candidate
+		
+		MatchBuffers(int n, int step)
+		{
+			unmatched = new int[n];
+			summedDistances = new float[n];
+			lowerBoundsA = new float[n/step + 1];
+			lowerBoundsB = new float[n/step + 1];
+		}
+	}
+}
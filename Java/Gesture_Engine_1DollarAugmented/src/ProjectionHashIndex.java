@@ -0,0 +1,273 @@
+// Approximate template index: random projection to a small embedding, then locality sensitive hashing
+// The normalised points of a gesture (2 x resolution floats) are multiplied by a fixed random Gaussian matrix
+// down to a few dimensions, which keeps distances between gestures roughly as they were. Each embedding is then
+// hashed into a bucket of every table, by rounding its position along a few random directions to a multiple of
+// bucketWidth, so gestures that lie close together tend to share a bucket. A search only scores the templates
+// that share a bucket with the candidate in at least one table, with the engine's own recognizer.
+// Results are approximate: a close template that falls just across a bucket edge in every table is missed.
+// More tables, fewer hashes per table or wider buckets raise recall at the cost of scoring more templates.
+// IndexEvaluation measures recall against a full scan, and tune adds tables until a target recall is met.
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import processing.core.*;
+
+public class ProjectionHashIndex implements TemplateIndex
+{
+	int dimensions = 16;     // Size of the embedding the points are projected to
+	int tables = 8;          // Independent hash tables, a template is found if it shares a bucket in any of them
+	int hashesPerTable = 4;  // Rounded directions combined into one bucket key
+	float bucketWidth = 2.5f; // Width of a bucket along each direction, in reference square lengths
+	long seed = 1;           // Seed of the random projection and directions, so builds are repeatable
+	int maxTables = 64;      // Most tables tune will go up to
+	
+	volatile Hashes hashes; // Replaced as a whole by build, so a search always sees one consistent set of tables
+	
+	// Scratch space for the candidate's embedding, one per thread as search is called from several threads
+	ThreadLocal<float[]> embeddings = new ThreadLocal<float[]>();
+	
+	AtomicLong queries = new AtomicLong();
+	AtomicLong templatesScored = new AtomicLong();
+	AtomicLong emptySearches = new AtomicLong(); // Searches that found no bucket members and scanned everything
+	
+	public ProjectionHashIndex()
+	{
+	}
+	
+	public ProjectionHashIndex(int dimensions, int tables, int hashesPerTable, float bucketWidth)
+	{
+		this.dimensions = dimensions;
+		this.tables = tables;
+		this.hashesPerTable = hashesPerTable;
+		this.bucketWidth = bucketWidth;
+	}
+	
+	public synchronized void build(GestureEngine engine)
+	{
+		TemplateStore store = engine.templateStore;
+		Hashes built = new Hashes(dimensions, tables, hashesPerTable, store.stride, bucketWidth*store.referenceSquareLength);
+		
+		Random random = new Random(seed);
+		for(int i=0; i<built.projection.length; i++)
+		{	// Scaled so an embedding keeps about the same length as the points it came from
+			built.projection[i] = (float)(random.nextGaussian()/Math.sqrt(dimensions));
+		}
+		for(int i=0; i<built.directions.length; i++)
+		{
+			built.directions[i] = (float)random.nextGaussian();
+		}
+		for(int i=0; i<built.offsets.length; i++)
+		{
+			built.offsets[i] = random.nextFloat()*built.width;
+		}
+		
+		float[] embedding = new float[dimensions];
+		for(int gt=0; gt<store.size; gt++)
+		{
+			if(!store.isRemoved(gt))
+			{
+				built.add(store, gt, embedding);
+			}
+		}
+		hashes = built;
+	}
+	
+	public synchronized void templatesAdded(GestureEngine engine, int from)
+	{
+		TemplateStore store = engine.templateStore;
+		float[] embedding = new float[dimensions];
+		for(int gt=from; gt<store.size; gt++)
+		{
+			hashes.add(store, gt, embedding);
+		}
+	}
+	
+	public Object state()
+	{
+		return hashes;
+	}
+	
+	public void search(TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking)
+	{
+		Hashes current = (Hashes)snapshot.indexState;
+		float[] embedding = embedding(current.dimensions);
+		current.embed(candidate.points, 0, embedding);
+		
+		// Gather the members of the candidate's bucket in every table. Buckets are never changed once in a table,
+		// so each one is looked up once and read from the same object throughout
+		Bucket[] found = new Bucket[current.tables];
+		int memberCount = 0;
+		for(int t=0; t<current.tables; t++)
+		{
+			found[t] = current.buckets.get(t).get(current.bucketKey(embedding, t));
+			if(found[t] != null)
+			{
+				memberCount += found[t].count;
+			}
+		}
+		int[] members = new int[memberCount];
+		memberCount = 0;
+		for(int t=0; t<current.tables; t++)
+		{
+			if(found[t] != null)
+			{
+				System.arraycopy(found[t].templates, 0, members, memberCount, found[t].count);
+				memberCount += found[t].count;
+			}
+		}
+		
+		// A template can share a bucket with the candidate in several tables, but is scored once. Removed templates
+		// are dropped here, so a bucket holding nothing else counts as empty
+		Arrays.sort(members);
+		int uniqueCount = 0;
+		for(int m=0; m<memberCount; m++)
+		{
+			if((m == 0 || members[m] != members[m-1]) && members[m] < snapshot.store.size && !snapshot.store.isRemoved(members[m]))
+			{
+				members[uniqueCount++] = members[m];
+			}
+		}
+		
+		if(uniqueCount == 0)
+		{	// The candidate is far from every template, so answer with a full scan rather than nothing
+			snapshot.scanTemplates(candidate, 0, snapshot.store.size, ranking);
+			emptySearches.incrementAndGet();
+			uniqueCount = snapshot.store.size;
+		}
+		else
+		{
+			snapshot.scanTemplates(candidate, members, uniqueCount, ranking);
+		}
+		queries.incrementAndGet();
+		templatesScored.addAndGet(uniqueCount);
+	}
+	
+	public IndexEvaluation tune(GestureEngine engine, List<ArrayList<PVector>> strokes, int k, float targetRecall)
+	{	// Doubles the number of tables until the recall of the top k on the sample strokes reaches targetRecall
+		// (between 0 and 1), or maxTables is reached. Returns the evaluation of the settings it stopped at
+		IndexEvaluation evaluation = IndexEvaluation.run(engine, this, strokes, k);
+		while(evaluation.recall() < targetRecall && tables*2 <= maxTables)
+		{
+			tables *= 2;
+			evaluation = IndexEvaluation.run(engine, this, strokes, k);
+		}
+		return evaluation;
+	}
+	
+	public float averageTemplatesScored()
+	{
+		long queryCount = queries.get();
+		return queryCount == 0 ? 0 : templatesScored.get()/(float)queryCount;
+	}
+	
+	float[] embedding(int dimensions)
+	{
+		float[] embedding = embeddings.get();
+		if(embedding == null || embedding.length != dimensions)
+		{
+			embedding = new float[dimensions];
+			embeddings.set(embedding);
+		}
+		return embedding;
+	}
+	
+	static class Hashes
+	{	// The projection, directions and tables of one build. Only the bucket maps change after it is published
+		int dimensions;
+		int tables;
+		int hashesPerTable;
+		int stride;
+		float width;        // bucketWidth in the units of the normalised points
+		float[] projection; // dimensions rows of stride floats
+		float[] directions; // tables*hashesPerTable rows of dimensions floats
+		float[] offsets;    // Random offset of each direction, within one bucket width
+		ArrayList<ConcurrentHashMap<Long, Bucket>> buckets;
+		
+		Hashes(int dimensions, int tables, int hashesPerTable, int stride, float width)
+		{
+			this.dimensions = dimensions;
+			this.tables = tables;
+			this.hashesPerTable = hashesPerTable;
+			this.stride = stride;
+			this.width = width;
+			projection = new float[dimensions*stride];
+			directions = new float[tables*hashesPerTable*dimensions];
+			offsets = new float[tables*hashesPerTable];
+			buckets = new ArrayList<ConcurrentHashMap<Long, Bucket>>(tables);
+			for(int t=0; t<tables; t++)
+			{
+				buckets.add(new ConcurrentHashMap<Long, Bucket>());
+			}
+		}
+		
+		void add(TemplateStore store, int index, float[] embedding)
+		{	// Puts a bigger copy of each bucket in place of the old one, which searches may still be reading
+			embed(store.points(index), store.offset(index), embedding);
+			for(int t=0; t<tables; t++)
+			{
+				Long key = bucketKey(embedding, t);
+				Bucket bucket = buckets.get(t).get(key);
+				buckets.get(t).put(key, (bucket == null) ? new Bucket(index) : bucket.with(index));
+			}
+		}
+		
+		void embed(float[] points, int offset, float[] embedding)
+		{
+			for(int d=0; d<dimensions; d++)
+			{
+				float sum = 0;
+				int row = d*stride;
+				for(int f=0; f<stride; f++)
+				{
+					sum += projection[row+f]*points[offset+f];
+				}
+				embedding[d] = sum;
+			}
+		}
+		
+		long bucketKey(float[] embedding, int table)
+		{	// Combines the rounded positions along the table's directions into one key
+			long key = table;
+			for(int h=0; h<hashesPerTable; h++)
+			{
+				int direction = table*hashesPerTable + h;
+				float position = offsets[direction];
+				for(int d=0; d<dimensions; d++)
+				{
+					position += directions[direction*dimensions + d]*embedding[d];
+				}
+				key = key*1000003 + (long)Math.floor(position/width);
+			}
+			return key;
+		}
+	}
+	
+	static class Bucket
+	{	// Templates that share a bucket. A bucket is never changed, adding a template makes a new one
+		int[] templates;
+		int count;
+		
+		Bucket(int index)
+		{
+			templates = new int[]{index};
+			count = 1;
+		}
+		
+		Bucket(int[] templates, int count)
+		{
+			this.templates = templates;
+			this.count = count;
+		}
+		
+		Bucket with(int index)
+		{	// Shares the array while there is room past count, as no bucket reads beyond its own count
+			int[] grown = (count == templates.length) ? Arrays.copyOf(templates, count*2) : templates;
+			grown[count] = index;
+			return new Bucket(grown, count+1);
+		}
+	}
+}
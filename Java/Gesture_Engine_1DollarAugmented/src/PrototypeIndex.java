@@ -0,0 +1,250 @@
+// Two stage template index: gesture names are ranked by prototype first, then only their templates are scored
+// Every gesture name gets one or a few prototypes, made by averaging its normalised templates point by point
+// (with more than one prototype the templates are split by k-means first). A candidate is compared to every
+// prototype with the $1 path distance, and only the templates of the classesToRefine closest names are scored
+// with the engine's recognizer. Recognition then costs about as much as the number of gesture names rather than
+// the number of templates, at the risk of missing the right name when its prototype ranks too low.
+// Raise classesToRefine (or prototypesPerClass) to trade speed back for accuracy, and use IndexEvaluation to see
+// how far the results drift from a full scan.
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PrototypeIndex implements TemplateIndex
+{
+	int prototypesPerClass; // Prototypes kept for each gesture name
+	int classesToRefine;    // Gesture names whose templates are scored in the second stage
+	int clusterIterations = 8; // k-means rounds used when a name has more than one prototype
+	
+	int stride;
+	volatile Prototypes state = new Prototypes(0); // Replaced as a whole whenever templates are added
+	
+	AtomicLong queries = new AtomicLong();
+	AtomicLong templatesScored = new AtomicLong();
+	
+	public PrototypeIndex()
+	{
+		this(1, 3);
+	}
+	
+	public PrototypeIndex(int prototypesPerClass, int classesToRefine)
+	{
+		this.prototypesPerClass = Math.max(prototypesPerClass, 1);
+		this.classesToRefine = Math.max(classesToRefine, 1);
+	}
+	
+	public synchronized void build(GestureEngine engine)
+	{
+		TemplateStore store = engine.templateStore;
+		stride = store.stride;
+		state = withTemplates(new Prototypes(stride), store, 0);
+	}
+	
+	public synchronized void templatesAdded(GestureEngine engine, int from)
+	{
+		state = withTemplates(state, engine.templateStore, from);
+	}
+	
+	public Object state()
+	{
+		return state;
+	}
+	
+	public void search(TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking)
+	{
+		Prototypes current = (Prototypes)snapshot.indexState;
+		
+		// First stage: rank gesture names by their closest prototype
+		int classCount = current.classTemplateCounts.length;
+		TopKCollector classRanking = new TopKCollector(Math.min(classesToRefine, classCount));
+		for(int c=0; c<classCount; c++)
+		{
+			float classDistance = Float.POSITIVE_INFINITY;
+			for(int p=0; p<current.prototypeCounts[c]; p++)
+			{
+				float bound = Math.min(classDistance, classRanking.bound());
+				classDistance = Math.min(classDistance, PathDistanceRecognizer.pathDistance(candidate.points, current.prototypes, (c*prototypesPerClass + p)*current.stride, current.stride, bound));
+			}
+			if(current.prototypeCounts[c] > 0)
+			{
+				classRanking.offer(classDistance, c);
+			}
+		}
+		classRanking.sort();
+		
+		// Second stage: score every template of the best names
+		int scored = 0;
+		for(int r=0; r<classRanking.size(); r++)
+		{
+			int classId = classRanking.index(r);
+			snapshot.scanTemplates(candidate, current.classTemplates[classId], current.classTemplateCounts[classId], ranking);
+			scored += current.classTemplateCounts[classId];
+		}
+		
+		queries.incrementAndGet();
+		templatesScored.addAndGet(scored);
+	}
+	
+	public float averageTemplatesScored()
+	{
+		long queryCount = queries.get();
+		return queryCount == 0 ? 0 : templatesScored.get()/(float)queryCount;
+	}
+	
+	Prototypes withTemplates(Prototypes current, TemplateStore store, int from)
+	{	// Adds the templates from the given one to the end of the store, and makes the prototypes of their classes again.
+		// Removed templates are left out, so a class with none left gets no prototype
+		Prototypes next = current.copy();
+		boolean[] changed = new boolean[store.classCount()];
+		for(int gt=from; gt<store.size; gt++)
+		{
+			if(store.isRemoved(gt))
+			{
+				continue;
+			}
+			next.addMember(store.classIds[gt], gt);
+			changed[store.classIds[gt]] = true;
+		}
+		
+		int classCount = next.classTemplateCounts.length;
+		next.prototypes = Arrays.copyOf(current.prototypes, classCount*prototypesPerClass*stride);
+		next.prototypeCounts = Arrays.copyOf(current.prototypeCounts, classCount);
+		for(int c=0; c<classCount; c++)
+		{
+			if(c < changed.length && changed[c])
+			{
+				next.prototypeCounts[c] = makePrototypes(store, next.classTemplates[c], next.classTemplateCounts[c], next.prototypes, c*prototypesPerClass*stride);
+			}
+		}
+		return next;
+	}
+	
+	int makePrototypes(TemplateStore store, int[] templates, int count, float[] target, int targetOffset)
+	{	// Writes the prototypes of one class to target and returns how many were made
+		if(count == 0)
+		{
+			return 0;
+		}
+		
+		if(count <= prototypesPerClass)
+		{	// Too few templates to average, so each one is a prototype of its own
+			for(int t=0; t<count; t++)
+			{
+				System.arraycopy(store.points(templates[t]), store.offset(templates[t]), target, targetOffset + t*stride, stride);
+			}
+			return count;
+		}
+		
+		// k-means over the templates, starting from templates spread evenly through the class
+		int clusters = prototypesPerClass;
+		int[] assignments = new int[count];
+		for(int k=0; k<clusters; k++)
+		{
+			System.arraycopy(store.points(templates[k*count/clusters]), store.offset(templates[k*count/clusters]), target, targetOffset + k*stride, stride);
+		}
+		
+		int iterations = (clusters == 1) ? 1 : clusterIterations;
+		for(int iteration=0; iteration<iterations; iteration++)
+		{
+			boolean changed = (iteration == 0);
+			for(int t=0; t<count; t++)
+			{
+				int nearest = 0;
+				float nearestDistance = Float.POSITIVE_INFINITY;
+				float[] templatePoints = store.points(templates[t]);
+				for(int k=0; k<clusters; k++)
+				{
+					float distance = PathDistanceRecognizer.pathDistance(templatePoints, store.offset(templates[t]), target, targetOffset + k*stride, stride, nearestDistance);
+					if(distance < nearestDistance)
+					{
+						nearestDistance = distance;
+						nearest = k;
+					}
+				}
+				if(assignments[t] != nearest)
+				{
+					assignments[t] = nearest;
+					changed = true;
+				}
+			}
+			if(!changed)
+			{
+				break;
+			}
+			averageClusters(store, templates, count, assignments, clusters, target, targetOffset);
+		}
+		return clusters;
+	}
+	
+	void averageClusters(TemplateStore store, int[] templates, int count, int[] assignments, int clusters, float[] target, int targetOffset)
+	{	// Moves each prototype to the point by point mean of its templates. A prototype with no templates stays where it is
+		double[] sums = new double[clusters*stride];
+		int[] sizes = new int[clusters];
+		for(int t=0; t<count; t++)
+		{
+			float[] templatePoints = store.points(templates[t]);
+			int offset = store.offset(templates[t]);
+			int sumOffset = assignments[t]*stride;
+			for(int f=0; f<stride; f++)
+			{
+				sums[sumOffset + f] += templatePoints[offset + f];
+			}
+			sizes[assignments[t]]++;
+		}
+		
+		for(int k=0; k<clusters; k++)
+		{
+			if(sizes[k] == 0)
+			{
+				continue;
+			}
+			for(int f=0; f<stride; f++)
+			{
+				target[targetOffset + k*stride + f] = (float)(sums[k*stride + f]/sizes[k]);
+			}
+		}
+	}
+	
+	static class Prototypes
+	{	// Class members and prototypes as one search sees them. Never changed once published, apart from member
+		// arrays being filled in past the counts it holds
+		int stride;
+		int[][] classTemplates = new int[0][]; // Templates of each gesture name, by class id
+		int[] classTemplateCounts = new int[0];
+		float[] prototypes = new float[0];     // prototypesPerClass slots of points per class id
+		int[] prototypeCounts = new int[0];    // Slots in use for each class id
+		
+		Prototypes(int stride)
+		{
+			this.stride = stride;
+		}
+		
+		Prototypes copy()
+		{
+			Prototypes copy = new Prototypes(stride);
+			copy.classTemplates = classTemplates.clone();
+			copy.classTemplateCounts = classTemplateCounts.clone();
+			copy.prototypes = prototypes;
+			copy.prototypeCounts = prototypeCounts;
+			return copy;
+		}
+		
+		void addMember(int classId, int index)
+		{
+			if(classId >= classTemplateCounts.length)
+			{
+				int classCapacity = Math.max(classId+1, classTemplateCounts.length*2);
+				classTemplates = Arrays.copyOf(classTemplates, classCapacity);
+				classTemplateCounts = Arrays.copyOf(classTemplateCounts, classCapacity);
+			}
+			if(classTemplates[classId] == null)
+			{
+				classTemplates[classId] = new int[4];
+			}
+			else if(classTemplates[classId].length == classTemplateCounts[classId])
+			{
+				classTemplates[classId] = Arrays.copyOf(classTemplates[classId], classTemplateCounts[classId]*2);
+			}
+			classTemplates[classId][classTemplateCounts[classId]++] = index;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+// The Protractor matching method (Li, 2010)
+// Each gesture is turned into a unit length vector of its centred points, and the template is rotated by
+// the angle that best lines it up with the candidate, which has a closed form solution. The distance is the
+// angle between the two vectors after that rotation, so a template costs one pass of multiply-adds
+// instead of a point by point distance with a square root for every point.
+public class ProtractorRecognizer implements Recognizer
+{
+	public int featureStride(TemplateStore store)
+	{
+		return store.stride;
+	}
+	
+	public void prepareTemplate(TemplateStore store, int index)
+	{
+		float[] vector = new float[store.featureStride];
+		vectorize(store.points(index), store.offset(index), store.stride, vector, 0);
+		store.setFeatures(index, vector, 0);
+	}
+	
+	public void prepareCandidate(GesturePreprocessor candidate)
+	{
+		float[] features = candidate.features(candidate.points.length);
+		vectorize(candidate.points, 0, candidate.points.length, features, 0);
+	}
+	
+	public float distance(GesturePreprocessor candidate, TemplateStore store, int index, float bound)
+	{	// The closed form has no partial result to abandon early on, so bound is not used
+		float[] candidateVector = candidate.features;
+		float[] templateVectors = store.features(index);
+		int offset = store.featureOffset(index);
+		
+		float a = 0;
+		float b = 0;
+		for(int p=0; p<store.stride; p+=2)
+		{
+			float templateX  = templateVectors[offset+p];
+			float templateY  = templateVectors[offset+p+1];
+			float candidateX = candidateVector[p];
+			float candidateY = candidateVector[p+1];
+			a += templateX*candidateX + templateY*candidateY;
+			b += templateX*candidateY - templateY*candidateX;
+		}
+		
+		if(a == 0 && b == 0)
+		{	// One of the vectors is empty, treat it as perpendicular
+			return (float)(Math.PI/2);
+		}
+		
+		double angle = Math.atan(b/a);
+		double maxCosine = a*Math.cos(angle) + b*Math.sin(angle);
+		return (float)Math.acos(Math.max(-1, Math.min(1, maxCosine)));
+	}
+	
+	public float toScore(TemplateStore store, float distance)
+	{	// Cosine similarity of the best aligned vectors
+		return (float)Math.cos(distance)*100f;
+	}
+	
+	static void vectorize(float[] points, int offset, int length, float[] vector, int vectorOffset)
+	{	// Centres the points on their centroid and scales them to a unit length vector
+		float sumX = 0;
+		float sumY = 0;
+		for(int p=0; p<length; p+=2)
+		{
+			sumX += points[offset+p];
+			sumY += points[offset+p+1];
+		}
+		float centroidX = sumX/(length/2);
+		float centroidY = sumY/(length/2);
+		
+		float sumSquares = 0;
+		for(int p=0; p<length; p+=2)
+		{
+			float x = points[offset+p]-centroidX;
+			float y = points[offset+p+1]-centroidY;
+			vector[vectorOffset+p]   = x;
+			vector[vectorOffset+p+1] = y;
+			sumSquares += x*x + y*y;
+		}
+		
+		float magnitude = (float)Math.sqrt(sumSquares);
+		if(magnitude > 0)
+		{
+			for(int p=0; p<length; p++)
+			{
+				vector[vectorOffset+p] /= magnitude;
+			}
+		}
+	}
+}
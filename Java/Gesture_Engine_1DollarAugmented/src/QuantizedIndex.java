@@ -0,0 +1,245 @@
+// Template index that scans 16 bit fixed point copies of the templates, then re-ranks the best of them exactly
+// Normalised template points lie within a range set by the reference square length, so each coordinate is stored
+// as a short: a step of range/QUANTIZED_MAX, with anything beyond the range clamped to its edge. The scan works out
+// path distances on those in integer arithmetic only and keeps the rerankFactor*k closest templates. Only those
+// are then scored on the float points with the engine's recognizer, so the distances and scores in the final
+// ranking are exact. A template can only be missed if rounding pushes it out of the shortlist.
+// Points take half the memory of floats, so twice as many templates fit in every cache line the scan reads.
+// The float points stay in the template store for the re-rank, so the index adds memory rather than saving any:
+// half as much again as the floats. Only the data a search scans is halved. Paired with a file backed
+// OffHeapTemplateStore, the floats are paged in from disk for the shortlist only and the heap holds the shorts.
+// printReport gives the memory added and scanned and the largest rounding error; IndexEvaluation gives the recall.
+// The shortlist is made with the $1 path distance, so with any other recognizer searches score every template.
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class QuantizedIndex implements TemplateIndex
+{
+	static final int QUANTIZED_MAX = Short.MAX_VALUE; // Largest stored value
+	
+	float range = 2;      // Largest coordinate kept exactly, in reference square lengths
+	int rerankFactor = 4; // Shortlist size as a multiple of the ranking size
+	
+	volatile Quantized quantized = new Quantized(0, 0, 1);
+	
+	// Scratch space for the quantized candidate, one per thread as search is called from several threads
+	ThreadLocal<short[]> candidatePoints = new ThreadLocal<short[]>();
+	ThreadLocal<TopKCollector> shortlists = new ThreadLocal<TopKCollector>();
+	
+	AtomicLong queries = new AtomicLong();
+	AtomicLong shortlisted = new AtomicLong();
+	
+	public QuantizedIndex()
+	{
+	}
+	
+	public QuantizedIndex(float range, int rerankFactor)
+	{
+		this.range = range;
+		this.rerankFactor = Math.max(rerankFactor, 1);
+	}
+	
+	public synchronized void build(GestureEngine engine)
+	{
+		TemplateStore store = engine.templateStore;
+		Quantized built = new Quantized(store.stride, Math.max(store.size, 16), range*store.referenceSquareLength/QUANTIZED_MAX);
+		for(int gt=0; gt<store.size; gt++)
+		{
+			built.set(store, gt);
+		}
+		built.size = store.size;
+		quantized = built;
+	}
+	
+	public synchronized void templatesAdded(GestureEngine engine, int from)
+	{
+		quantized = quantized.withTemplates(engine.templateStore, from);
+	}
+	
+	public Object state()
+	{
+		return quantized;
+	}
+	
+	public void search(TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking)
+	{
+		if(!(snapshot.recognizer instanceof PathDistanceRecognizer || snapshot.recognizer instanceof VectorizedPathRecognizer))
+		{
+			snapshot.scanTemplates(candidate, 0, snapshot.store.size, ranking);
+			return;
+		}
+		
+		Quantized current = (Quantized)snapshot.indexState;
+		int size = Math.min(current.size, snapshot.store.size); // Templates added since the snapshot would only take up room in the shortlist
+		short[] query = candidatePoints(current.stride);
+		for(int f=0; f<current.stride; f++)
+		{
+			query[f] = current.quantize(candidate.points[f]);
+		}
+		
+		// Shortlist on the quantized points, in quantized units
+		TopKCollector shortlist = shortlist();
+		shortlist.reset(Math.min(size, ranking.capacity*rerankFactor));
+		for(int gt=0; gt<size; gt++)
+		{
+			if(snapshot.store.isRemoved(gt))
+			{
+				continue;
+			}
+			float bound = shortlist.bound();
+			int distance = pathDistance(query, current.points, gt*current.stride, current.stride, (int)Math.min(bound, Integer.MAX_VALUE));
+			if(distance <= bound)
+			{
+				shortlist.offer(distance, gt);
+			}
+		}
+		
+		// Exact float scoring of the shortlist
+		for(int s=0; s<shortlist.size(); s++)
+		{
+			snapshot.scoreTemplate(candidate, shortlist.indices[s], ranking);
+		}
+		
+		queries.incrementAndGet();
+		shortlisted.addAndGet(shortlist.size());
+	}
+	
+	static int pathDistance(short[] candidate, short[] templates, int offset, int stride, int bound)
+	{	// Path distance in quantized units, in integer arithmetic only. The length of each step is estimated as
+		// 0.96*max(|dx|,|dy|) + 0.4*min(|dx|,|dy|), which is within 4% of the true length and needs no square root.
+		// Stops as soon as the sum passes bound and returns the partial sum
+		int distanceSum = 0;
+		for(int p=0; p<stride; p+=2)
+		{
+			int dx = Math.abs(candidate[p] - templates[offset+p]);
+			int dy = Math.abs(candidate[p+1] - templates[offset+p+1]);
+			distanceSum += (Math.max(dx, dy)*123 + Math.min(dx, dy)*51) >> 7;
+			if(distanceSum > bound)
+			{
+				return distanceSum;
+			}
+		}
+		return distanceSum;
+	}
+	
+	public long quantizedBytes()
+	{	// Memory the index adds on top of the template store, and what a search scans
+		return (long)quantized.size*quantized.stride*2;
+	}
+	
+	public long floatBytes()
+	{	// What the same points take as floats in the template store, and what a full scan reads
+		return (long)quantized.size*quantized.stride*4;
+	}
+	
+	public void printReport(TemplateStore store)
+	{	// Memory added and scanned against float points, and the rounding the quantization brought in
+		Quantized current = quantized;
+		float maxError = 0;
+		long clamped = 0;
+		for(int gt=0; gt<current.size; gt++)
+		{
+			float[] templatePoints = store.points(gt);
+			int offset = store.offset(gt);
+			for(int f=0; f<current.stride; f++)
+			{
+				float value = templatePoints[offset + f];
+				float error = Math.abs(current.dequantize(current.points[gt*current.stride + f])-value);
+				if(Math.abs(value) > current.step*QUANTIZED_MAX)
+				{
+					clamped++;
+				}
+				else
+				{
+					maxError = Math.max(maxError, error);
+				}
+			}
+		}
+		
+		System.out.println(current.size + " templates, " + quantizedBytes() + " bytes of quantized points added to the " + floatBytes() + " the store holds as floats ("
+				+ (quantizedBytes()+floatBytes()) + " in all)");
+		System.out.println("A search scans " + quantizedBytes() + " bytes where a full scan reads " + floatBytes() + ", then re-ranks its shortlist on the floats");
+		System.out.println("Step " + current.step + ", largest rounding error " + maxError + ", " + clamped + " coordinates clamped to the range");
+		long queryCount = queries.get();
+		if(queryCount > 0)
+		{
+			System.out.println(queryCount + " searches, " + (shortlisted.get()/(float)queryCount) + " templates re-ranked per search");
+		}
+	}
+	
+	short[] candidatePoints(int stride)
+	{
+		short[] points = candidatePoints.get();
+		if(points == null || points.length < stride)
+		{
+			points = new short[stride];
+			candidatePoints.set(points);
+		}
+		return points;
+	}
+	
+	TopKCollector shortlist()
+	{
+		TopKCollector shortlist = shortlists.get();
+		if(shortlist == null)
+		{
+			shortlist = new TopKCollector(0);
+			shortlists.set(shortlist);
+		}
+		return shortlist;
+	}
+	
+	static class Quantized
+	{	// Quantized points of every template, packed the same way as TemplateStore.points.
+		// Searches only read the first size templates, so a template can be written past them while searches run
+		int stride;
+		float step; // Value of one quantized unit
+		short[] points;
+		int size;
+		
+		Quantized(int stride, int capacity, float step)
+		{
+			this.stride = stride;
+			this.step = step;
+			points = new short[stride*capacity];
+		}
+		
+		void set(TemplateStore store, int index)
+		{
+			float[] templatePoints = store.points(index);
+			int offset = store.offset(index);
+			for(int f=0; f<stride; f++)
+			{
+				points[index*stride + f] = quantize(templatePoints[offset + f]);
+			}
+		}
+		
+		Quantized withTemplates(TemplateStore store, int from)
+		{	// Adds the templates from the given one to the end of the store. Searches holding this state only read up to its size
+			Quantized next = new Quantized(stride, 0, step);
+			int required = store.size*stride;
+			next.points = (points.length < required) ? Arrays.copyOf(points, Math.max(required, points.length*2)) : points;
+			for(int gt=from; gt<store.size; gt++)
+			{
+				next.set(store, gt);
+			}
+			next.size = Math.max(size, store.size);
+			return next;
+		}
+		
+		short quantize(float value)
+		{
+			float scaled = value/step;
+			if(Float.isNaN(scaled))
+			{	// Points of a stroke with no width or height, matched as if they were at the centre
+				return 0;
+			}
+			return (short)Math.max(-QUANTIZED_MAX, Math.min(QUANTIZED_MAX, Math.round(scaled)));
+		}
+		
+		float dequantize(short value)
+		{
+			return value*step;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+// Timings and counters of the recognition pipeline, off unless enabled
+// Every stage (see Stage) keeps a LatencyHistogram of how long it took, and searches count the templates they
+// scored, abandoned early and pruned (never scored, because an index ruled them out). Read them through stage and
+// the getters, as text with report, or over JMX once registerMBean has been called.
+// While disabled the pipeline only checks the enabled flag and reads no clock, so it costs next to nothing.
+// Each GestureEngine has its own, as GestureEngine.metrics.
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class RecognitionMetrics implements RecognitionMetricsMBean
+{
+	enum Stage
+	{
+		RESAMPLE,          // Resampling the stroke to the engine's resolution
+		CENTROID,          // Finding the centroid of the resampled points
+		INDICATIVE_ANGLE,  // Finding the angle from the centroid to the first point
+		SCALE_FACTOR,      // Measuring the raw stroke for its scale factor
+		ROTATE_AND_SCALE,  // Rotating the points to the indicative angle and scaling them
+		PREPARE_CANDIDATE, // Recognizer specific preparation of the candidate
+		SEARCH,            // Scoring templates, through the template index when there is one
+		RESPONSE,          // Building the response from the ranking
+		RECOGNITION,       // A whole recognition of a processed candidate, from preparing it to the response
+		BATCH,             // A whole call to recogniseBatch
+		LOAD_FOLDER,       // A whole call to loadGestureFolder
+		LOAD_BUNDLE        // A whole call to loadGestureBundle
+	}
+	
+	volatile boolean enabled; // Volatile so that setEnabled over JMX is seen by recognising threads
+	LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+	
+	AtomicLong templatesScored = new AtomicLong();    // Templates a search worked out a distance for
+	AtomicLong templatesAbandoned = new AtomicLong(); // Of those, the ones abandoned early as they could not make the ranking
+	AtomicLong templatesPruned = new AtomicLong();    // Templates a search never scored
+	AtomicLong fallbackScans = new AtomicLong();      // Searches whose index found nothing, so every template was scored after it
+	AtomicLong templatesLoaded = new AtomicLong();
+	
+	public RecognitionMetrics()
+	{
+		for(int s=0; s<stages.length; s++)
+		{
+			stages[s] = new LatencyHistogram();
+		}
+	}
+	
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+	
+	public LatencyHistogram stage(Stage stage)
+	{
+		return stages[stage.ordinal()];
+	}
+	
+	long record(Stage stage, long startNanos)
+	{	// Records the time since startNanos against a stage, and returns the time now so the next stage can start from it
+		long now = System.nanoTime();
+		stages[stage.ordinal()].record(now-startNanos);
+		return now;
+	}
+	
+	void countSearch(int scored, int abandoned, int pruned, boolean fallbackScan)
+	{
+		templatesScored.addAndGet(scored);
+		templatesAbandoned.addAndGet(abandoned);
+		templatesPruned.addAndGet(pruned);
+		if(fallbackScan)
+		{
+			fallbackScans.incrementAndGet();
+		}
+	}
+	
+	void countLoaded(int templates)
+	{
+		templatesLoaded.addAndGet(templates);
+	}
+	
+	public long getRecognitions()
+	{
+		return stage(Stage.RECOGNITION).count();
+	}
+	
+	public double getRecognitionMeanNanos()
+	{
+		return stage(Stage.RECOGNITION).meanNanos();
+	}
+	
+	public long getRecognitionP50Nanos()
+	{
+		return stage(Stage.RECOGNITION).percentileNanos(50);
+	}
+	
+	public long getRecognitionP99Nanos()
+	{
+		return stage(Stage.RECOGNITION).percentileNanos(99);
+	}
+	
+	public long getRecognitionMaxNanos()
+	{
+		return stage(Stage.RECOGNITION).maxNanos();
+	}
+	
+	public long getTemplatesScored()
+	{
+		return templatesScored.get();
+	}
+	
+	public long getTemplatesAbandoned()
+	{
+		return templatesAbandoned.get();
+	}
+	
+	public long getTemplatesPruned()
+	{
+		return templatesPruned.get();
+	}
+	
+	public long getFallbackScans()
+	{
+		return fallbackScans.get();
+	}
+	
+	public long getTemplatesLoaded()
+	{
+		return templatesLoaded.get();
+	}
+	
+	public String getReport()
+	{
+		return report();
+	}
+	
+	public String report()
+	{	// Text snapshot of every stage that has recorded anything, then the counters. Times are in microseconds
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%-18s %10s %10s %10s %10s %10s%n", "stage", "count", "mean us", "p50 us", "p99 us", "max us"));
+		for(Stage stage : Stage.values())
+		{
+			LatencyHistogram histogram = stage(stage);
+			if(histogram.count() == 0)
+			{
+				continue;
+			}
+			report.append(String.format("%-18s %10d %10.2f %10.2f %10.2f %10.2f%n", stage.name().toLowerCase(), histogram.count(),
+					histogram.meanNanos()/1000, histogram.percentileNanos(50)/1000.0, histogram.percentileNanos(99)/1000.0, histogram.maxNanos()/1000.0));
+		}
+		report.append("templates scored " + templatesScored.get() + ", abandoned early " + templatesAbandoned.get() + ", pruned " + templatesPruned.get() + ", fallback scans " + fallbackScans.get() + ", loaded " + templatesLoaded.get());
+		return report.toString();
+	}
+	
+	public void printReport()
+	{
+		System.out.println(report());
+	}
+	
+	public void reset()
+	{
+		for(LatencyHistogram histogram : stages)
+		{
+			histogram.reset();
+		}
+		templatesScored.set(0);
+		templatesAbandoned.set(0);
+		templatesPruned.set(0);
+		fallbackScans.set(0);
+		templatesLoaded.set(0);
+	}
+	
+	public ObjectName registerMBean(String name)
+	{	// Makes the metrics readable over JMX (jconsole, VisualVM) under the given object name, such as
+		// "GestureEngine:type=RecognitionMetrics". Returns null if the name is taken or not valid
+		try
+		{
+			ObjectName objectName = new ObjectName(name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			return objectName;
+		}
+		catch(JMException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+// Management interface of RecognitionMetrics, for reading the metrics over JMX (see RecognitionMetrics.registerMBean)
+public interface RecognitionMetricsMBean
+{
+	boolean isEnabled();
+	
+	void setEnabled(boolean enabled);
+	
+	long getRecognitions();
+	
+	double getRecognitionMeanNanos();
+	
+	long getRecognitionP50Nanos();
+	
+	long getRecognitionP99Nanos();
+	
+	long getRecognitionMaxNanos();
+	
+	long getTemplatesScored();
+	
+	long getTemplatesAbandoned();
+	
+	long getTemplatesPruned();
+	
+	long getFallbackScans();
+	
+	long getTemplatesLoaded();
+	
+	String getReport();
+	
+	void reset();
+}
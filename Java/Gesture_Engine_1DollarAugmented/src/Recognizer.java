@@ -0,0 +1,22 @@
+// Matching method used by GestureEngine to compare a candidate gesture against the stored templates
+// Distances are lower-is-better, toScore turns them into the % score reported in a GestureResponse.
+// Anything a recognizer can work out ahead of time is handed to the template store (setFeatures) when a
+// template is added, and written into the candidate's feature buffer once per recognition.
+public interface Recognizer
+{
+	// Number of feature floats this recognizer keeps per template in the store (see TemplateStore.setFeatures)
+	int featureStride(TemplateStore store);
+	
+	// Precomputes the features of one template, called whenever a template is added to the store
+	void prepareTemplate(TemplateStore store, int index);
+	
+	// Precomputes the candidate's features, called once before a candidate is scored against the templates
+	void prepareCandidate(GesturePreprocessor candidate);
+	
+	// Distance between the candidate and a template. Once the distance is known to be above bound the recognizer
+	// may stop early and return any value above bound. Must be safe to call from several threads at once
+	float distance(GesturePreprocessor candidate, TemplateStore store, int index, float bound);
+	
+	// Converts a distance into a recognition score (in %)
+	float toScore(TemplateStore store, float distance);
+}
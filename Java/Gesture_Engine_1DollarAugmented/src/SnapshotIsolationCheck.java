@@ -0,0 +1,181 @@
+// Checks that a published snapshot keeps scoring the same while the engine moves on
+// Usage: SnapshotIsolationCheck [backing file]
+// Fills an engine with random templates in each kind of store (the heap, direct memory and, when a backing file is
+// given, a file backed OffHeapTemplateStore), holds on to its snapshot, and then switches the recognizer and clears
+// the store. The snapshot's distances to a candidate are worked out before and after, and have to stay the same.
+// Then, for each template index, holds a snapshot while most templates are removed and the rest compacted into a new
+// store, which builds the index again. Searches through the held snapshot have to rank the same templates as before.
+// Prints one line per store and per index, and exits with status 1 if anything changed.
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import processing.core.*;
+
+public class SnapshotIsolationCheck
+{
+	public static void main(String[] args) throws IOException
+	{
+		String backingFile = args.length > 0 ? args[0] : null;
+		int failures = 0;
+		for(int kind=0; kind<3; kind++)
+		{
+			if(kind == 2 && backingFile == null)
+			{
+				continue;
+			}
+			
+			GestureEngine engine = new GestureEngine();
+			if(kind == 1)
+			{
+				engine.setTemplateStore(new OffHeapTemplateStore(engine.gestureResolution, engine.referenceSquareLength));
+			}
+			else if(kind == 2)
+			{
+				engine.setTemplateStore(new OffHeapTemplateStore(engine.gestureResolution, engine.referenceSquareLength, backingFile));
+			}
+			failures += check(engine);
+			if(engine.templateStore instanceof OffHeapTemplateStore)
+			{
+				((OffHeapTemplateStore)engine.templateStore).release();
+			}
+		}
+		
+		TemplateIndex[] indexes = {new PrototypeIndex(), new FeatureFilterIndex(), new VantagePointIndex(), new ProjectionHashIndex(), new QuantizedIndex(), new CoarseToFineIndex()};
+		for(TemplateIndex index : indexes)
+		{
+			failures += checkIndex(index);
+		}
+		if(failures > 0)
+		{
+			System.exit(1);
+		}
+	}
+	
+	static int check(GestureEngine engine)
+	{	// Returns the number of templates whose distance changed
+		Random random = new Random(1);
+		engine.setRecognizer(new ProtractorRecognizer());
+		for(int gt=0; gt<200; gt++)
+		{
+			Gesture template = new Gesture(engine, randomStroke(random));
+			template.gestureName = "GESTURE_" + (gt%8);
+			engine.addTemplate(template);
+		}
+		TemplateSnapshot snapshot = engine.snapshot;
+		GesturePreprocessor candidate = new GesturePreprocessor(engine.gestureResolution, engine.referenceSquareLength);
+		candidate.process(randomStroke(random));
+		float[] before = distances(snapshot, candidate);
+		
+		// A recognizer of another feature stride makes the store lay its features out again
+		engine.setRecognizer(new PointCloudRecognizer());
+		float[] afterRecognizer = distances(snapshot, candidate);
+		synchronized(engine)
+		{
+			engine.templateStore.clear();
+			engine.setRecognizer(new ProtractorRecognizer());
+		}
+		float[] afterClear = distances(snapshot, candidate);
+		
+		int changed = 0;
+		for(int gt=0; gt<before.length; gt++)
+		{
+			if(Float.floatToIntBits(before[gt]) != Float.floatToIntBits(afterRecognizer[gt]) || Float.floatToIntBits(before[gt]) != Float.floatToIntBits(afterClear[gt]))
+			{
+				changed++;
+			}
+		}
+		System.out.println(snapshot.store.getClass().getSimpleName() + (engine.templateStore instanceof OffHeapTemplateStore && ((OffHeapTemplateStore)engine.templateStore).pointFile != null ? " (file backed)" : "")
+				+ ": " + changed + " of " + before.length + " distances changed");
+		return changed;
+	}
+	
+	static int checkIndex(TemplateIndex index)
+	{	// Returns the number of searches whose ranking changed
+		Random random = new Random(1);
+		GestureEngine engine = new GestureEngine();
+		HashSet<String> removedSources = new HashSet<String>();
+		for(int gt=0; gt<200; gt++)
+		{
+			Gesture template = new Gesture(engine, randomStroke(random));
+			template.gestureName = "GESTURE_" + (gt%8);
+			template.sourceFile = "template_" + gt;
+			engine.addTemplate(template);
+			if(gt%4 != 0)
+			{
+				removedSources.add(template.sourceFile);
+			}
+		}
+		engine.setTemplateIndex(index);
+		TemplateSnapshot snapshot = engine.snapshot;
+		
+		ArrayList<GesturePreprocessor> candidates = new ArrayList<GesturePreprocessor>();
+		for(int c=0; c<20; c++)
+		{
+			GesturePreprocessor candidate = new GesturePreprocessor(engine.gestureResolution, engine.referenceSquareLength);
+			candidate.process(randomStroke(random));
+			snapshot.recognizer.prepareCandidate(candidate);
+			candidates.add(candidate);
+		}
+		String[] before = rankings(snapshot, candidates);
+		engine.replaceTemplates(removedSources, new ArrayList<Gesture>());
+		String[] after = rankings(snapshot, candidates);
+		
+		int changed = 0;
+		for(int c=0; c<before.length; c++)
+		{
+			if(!before[c].equals(after[c]))
+			{
+				changed++;
+			}
+		}
+		System.out.println(index.getClass().getSimpleName() + " after compacting " + snapshot.store.size + " templates to " + engine.templateStore.size
+				+ ": " + changed + " of " + before.length + " rankings changed");
+		return changed;
+	}
+	
+	static String[] rankings(TemplateSnapshot snapshot, ArrayList<GesturePreprocessor> candidates)
+	{
+		String[] rankings = new String[candidates.size()];
+		TopKCollector ranking = new TopKCollector(5);
+		for(int c=0; c<rankings.length; c++)
+		{
+			ranking.reset(5);
+			snapshot.index.search(snapshot, candidates.get(c), ranking);
+			ranking.sort();
+			StringBuilder ranked = new StringBuilder();
+			for(int r=0; r<ranking.size(); r++)
+			{
+				ranked.append(ranking.index(r)).append(' ');
+			}
+			rankings[c] = ranked.toString();
+		}
+		return rankings;
+	}
+	
+	static float[] distances(TemplateSnapshot snapshot, GesturePreprocessor candidate)
+	{
+		snapshot.recognizer.prepareCandidate(candidate);
+		float[] distances = new float[snapshot.store.size];
+		for(int gt=0; gt<distances.length; gt++)
+		{
+			distances[gt] = snapshot.recognizer.distance(candidate, snapshot.store, gt, Float.POSITIVE_INFINITY);
+		}
+		return distances;
+	}
+	
+	static ArrayList<PVector> randomStroke(Random random)
+	{
+		ArrayList<PVector> points = new ArrayList<PVector>();
+		float x = 0;
+		float y = 0;
+		for(int p=0; p<40; p++)
+		{
+			x += random.nextFloat()*20-8;
+			y += random.nextFloat()*20-8;
+			points.add(new PVector(x, y));
+		}
+		return points;
+	}
+}
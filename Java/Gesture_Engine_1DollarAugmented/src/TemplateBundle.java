@@ -0,0 +1,359 @@
+// Compact binary bundle of gesture templates (.gsb), as an alternative to one JSON .gst file per template
+// Layout (little endian, every section starts on a 4 byte boundary):
+//   header      magic "GSB1", version, resolution, template count, class count, reference square length
+//   name table  for each class: name length in bytes (int), UTF-8 name, padding
+//   metadata    class id (int), indicative angle, centroid x/y and scale factor x/y (floats) per template
+//   points      resolution x,y pairs (floats) per template, back to back in the same layout as TemplateStore.points
+// A bundle is memory mapped when loaded, a section at a time, so the points go into the store with bulk copies
+// and no parsing at all. Use convertFolder (or run this class) to build a bundle from a folder of .gst files.
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class TemplateBundle
+{
+	static final int MAGIC = 0x31425347; // "GSB1" read as a little endian int
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 24;
+	static final int METADATA_SIZE = 24; // Bytes of metadata per template
+	static final int WRITE_BUFFER_SIZE = 1 << 20;  // Bytes written to the file at a time
+	static final int MAP_CHUNK_SIZE = 1 << 26;     // Most bytes mapped at once when loading, well under the 2 GB a mapping can hold
+	
+	public static void main(String[] args)
+	{	// Usage: TemplateBundle <gesture folder> <bundle file>
+		if(args.length != 2)
+		{
+			System.out.println("Usage: TemplateBundle <gesture folder> <bundle file>");
+			return;
+		}
+		
+		if(convertFolder(args[0], args[1], true))
+		{
+			System.out.println("Bundle saved to " + args[1]);
+		}
+	}
+	
+	public static boolean convertFolder(String folderPath, String bundlePath, boolean verbose)
+	{	// Loads every .gst file in a folder and writes them to a single bundle
+		GestureEngine engine = new GestureEngine();
+		if(!engine.loadGestureTemplatesFromFolder(folderPath, verbose))
+		{
+			return false;
+		}
+		return write(engine.templateStore, bundlePath);
+	}
+	
+	public static boolean write(TemplateStore store, String bundlePath)
+	{	// Writes the templates that have not been removed. The bundle is streamed out a buffer at a time, so a store
+		// of any size can be written
+		File bundleFile = new File(bundlePath);
+		File tempFile = new File(bundlePath + ".tmp");
+		try
+		{
+			byte[][] encodedNames = new byte[store.classCount()][];
+			for(int c=0; c<encodedNames.length; c++)
+			{
+				encodedNames[c] = store.classNames.get(c).getBytes(StandardCharsets.UTF_8);
+			}
+			int liveCount = store.liveCount(); // Removed templates are left out
+			
+			// Write to a temporary file first so a bundle that is being read is never seen half written
+			RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+			try
+			{
+				file.setLength(0);
+				ChunkWriter writer = new ChunkWriter(file.getChannel(), Math.max(WRITE_BUFFER_SIZE, store.stride*4));
+				writer.putInt(MAGIC);
+				writer.putInt(VERSION);
+				writer.putInt(store.resolution);
+				writer.putInt(liveCount);
+				writer.putInt(encodedNames.length);
+				writer.putFloat(store.referenceSquareLength);
+				
+				for(int c=0; c<encodedNames.length; c++)
+				{
+					writer.putInt(encodedNames[c].length);
+					writer.put(encodedNames[c]);
+					writer.pad(align(encodedNames[c].length) - encodedNames[c].length);
+				}
+				
+				for(int t=0; t<store.size; t++)
+				{
+					if(store.isRemoved(t))
+					{
+						continue;
+					}
+					writer.putInt(store.classIds[t]);
+					writer.putFloat(store.indicativeAngles[t]);
+					writer.putFloat(store.centroids[t*2]);
+					writer.putFloat(store.centroids[t*2 + 1]);
+					writer.putFloat(store.scaleFactors[t*2]);
+					writer.putFloat(store.scaleFactors[t*2 + 1]);
+				}
+				
+				for(int t=0; t<store.size; t++)
+				{
+					if(store.isRemoved(t))
+					{
+						continue;
+					}
+					writer.putFloats(store.points(t), store.offset(t), store.stride);
+				}
+				writer.flush();
+			}
+			finally
+			{
+				file.close();
+			}
+			
+			if(bundleFile.exists() && !bundleFile.delete())
+			{
+				throw new IOException("Could not replace " + bundlePath);
+			}
+			if(!tempFile.renameTo(bundleFile))
+			{
+				throw new IOException("Could not rename " + tempFile + " to " + bundlePath);
+			}
+			return true;
+		}
+		catch(IOException e)
+		{
+			tempFile.delete();
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	public static int load(String bundlePath, TemplateStore store) throws IOException
+	{	// Appends every template of a bundle to the store and returns how many were added. The whole bundle is
+		// checked before the store is touched, so a truncated or corrupt file throws and leaves the store as it was.
+		// The file is mapped a section at a time, so bundles may be larger than a single mapping allows
+		RandomAccessFile file = new RandomAccessFile(bundlePath, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			long fileSize = channel.size();
+			ByteBuffer header = read(channel, 0, HEADER_SIZE, fileSize, bundlePath);
+			
+			if(header.getInt() != MAGIC)
+			{
+				throw new IOException(bundlePath + " is not a gesture bundle");
+			}
+			int version = header.getInt();
+			if(version != VERSION)
+			{
+				throw new IOException(bundlePath + " has unsupported bundle version " + version);
+			}
+			
+			int resolution = header.getInt();
+			int templateCount = header.getInt();
+			int classCount = header.getInt();
+			float referenceSquareLength = header.getFloat();
+			if(resolution != store.resolution || referenceSquareLength != store.referenceSquareLength)
+			{
+				throw new IOException(bundlePath + " holds templates of resolution " + resolution + " and reference square " + referenceSquareLength
+						+ ", expected " + store.resolution + " and " + store.referenceSquareLength);
+			}
+			if(templateCount < 0 || classCount < 0 || templateCount > Integer.MAX_VALUE - store.size)
+			{
+				throw new IOException(bundlePath + " is corrupt, it claims " + templateCount + " templates of " + classCount + " classes");
+			}
+			
+			String[] classNames = new String[classCount];
+			long position = HEADER_SIZE;
+			for(int c=0; c<classCount; c++)
+			{
+				int nameLength = read(channel, position, 4, fileSize, bundlePath).getInt();
+				if(nameLength < 0)
+				{
+					throw new IOException(bundlePath + " is corrupt, class " + c + " has a name of " + nameLength + " bytes");
+				}
+				ByteBuffer encodedName = read(channel, position + 4, nameLength, fileSize, bundlePath);
+				classNames[c] = new String(encodedName.array(), 0, nameLength, StandardCharsets.UTF_8);
+				position += 4 + align(nameLength);
+			}
+			
+			long metadataStart = position;
+			long pointsStart = metadataStart + (long)templateCount*METADATA_SIZE;
+			long pointSize = (long)store.stride*4;
+			long expectedSize = pointsStart + templateCount*pointSize;
+			if(fileSize != expectedSize)
+			{
+				throw new IOException(bundlePath + " is " + fileSize + " bytes, but " + templateCount + " templates make " + expectedSize);
+			}
+			
+			int metadataPerChunk = Math.max(1, MAP_CHUNK_SIZE/METADATA_SIZE);
+			for(int t=0; t<templateCount; t+=metadataPerChunk)
+			{	// Class ids are checked in a pass of their own, so nothing is added when one of them is out of range
+				int count = Math.min(metadataPerChunk, templateCount-t);
+				ByteBuffer metadata = map(channel, metadataStart + (long)t*METADATA_SIZE, (long)count*METADATA_SIZE);
+				for(int m=0; m<count; m++)
+				{
+					int classId = metadata.getInt(m*METADATA_SIZE);
+					if(classId < 0 || classId >= classCount)
+					{
+						throw new IOException(bundlePath + " is corrupt, template " + (t+m) + " has class " + classId + " of " + classCount);
+					}
+				}
+			}
+			
+			// The bundle is sound, so from here on the store is changed. Bundle class ids are mapped onto the
+			// store's own, as the store may already hold other templates
+			int[] classIds = new int[classCount];
+			for(int c=0; c<classCount; c++)
+			{
+				classIds[c] = store.classId(classNames[c]);
+			}
+			
+			int first = store.size;
+			store.ensureCapacity(first + templateCount);
+			for(int t=0; t<templateCount; t+=metadataPerChunk)
+			{
+				int count = Math.min(metadataPerChunk, templateCount-t);
+				ByteBuffer metadata = map(channel, metadataStart + (long)t*METADATA_SIZE, (long)count*METADATA_SIZE);
+				for(int m=0; m<count; m++)
+				{
+					int index = first + t + m;
+					int classId = classIds[metadata.getInt()];
+					store.classIds[index] = classId;
+					store.names[index] = store.classNames.get(classId);
+					store.indicativeAngles[index] = metadata.getFloat();
+					store.centroids[index*2] = metadata.getFloat();
+					store.centroids[index*2 + 1] = metadata.getFloat();
+					store.scaleFactors[index*2] = metadata.getFloat();
+					store.scaleFactors[index*2 + 1] = metadata.getFloat();
+					store.gestures[index] = null; // Made on demand, see TemplateStore.gesture
+				}
+			}
+			
+			int templatesPerChunk = (int)Math.max(1, MAP_CHUNK_SIZE/pointSize);
+			float[] templatePoints = new float[store.stride];
+			for(int t=0; t<templateCount; t+=templatesPerChunk)
+			{
+				int count = Math.min(templatesPerChunk, templateCount-t);
+				FloatBuffer points = map(channel, pointsStart + t*pointSize, count*pointSize).asFloatBuffer();
+				for(int m=0; m<count; m++)
+				{
+					points.get(templatePoints);
+					store.setPoints(first + t + m, templatePoints, 0);
+				}
+			}
+			store.size = first + templateCount;
+			return templateCount;
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+	
+	static ByteBuffer read(FileChannel channel, long position, int length, long fileSize, String bundlePath) throws IOException
+	{	// Reads a small section of the bundle, such as the header or a class name, checking that the file holds it
+		if(position + length > fileSize)
+		{
+			throw new IOException(bundlePath + " is truncated, it ends at " + fileSize + " bytes");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new IOException(bundlePath + " is truncated, it ends at " + fileSize + " bytes");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	static ByteBuffer map(FileChannel channel, long position, long size) throws IOException
+	{
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	static int align(int length)
+	{	// Rounds a length up to a multiple of 4 bytes
+		return (length+3) & ~3;
+	}
+	
+	static class ChunkWriter
+	{	// Writes through a buffer of fixed size, so writing a bundle takes no more memory than the buffer however
+		// many templates there are
+		FileChannel channel;
+		ByteBuffer buffer;
+		
+		ChunkWriter(FileChannel channel, int bufferSize)
+		{
+			this.channel = channel;
+			buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		void putInt(int value) throws IOException
+		{
+			ensureRoom(4);
+			buffer.putInt(value);
+		}
+		
+		void putFloat(float value) throws IOException
+		{
+			ensureRoom(4);
+			buffer.putFloat(value);
+		}
+		
+		void put(byte[] bytes) throws IOException
+		{
+			int written = 0;
+			while(written < bytes.length)
+			{
+				ensureRoom(1);
+				int count = Math.min(buffer.remaining(), bytes.length-written);
+				buffer.put(bytes, written, count);
+				written += count;
+			}
+		}
+		
+		void pad(int count) throws IOException
+		{
+			for(int b=0; b<count; b++)
+			{
+				ensureRoom(1);
+				buffer.put((byte)0);
+			}
+		}
+		
+		void putFloats(float[] values, int offset, int count) throws IOException
+		{
+			while(count > 0)
+			{
+				ensureRoom(4);
+				int chunk = Math.min(count, buffer.remaining()/4);
+				buffer.asFloatBuffer().put(values, offset, chunk);
+				buffer.position(buffer.position() + chunk*4);
+				offset += chunk;
+				count -= chunk;
+			}
+		}
+		
+		void ensureRoom(int bytes) throws IOException
+		{
+			if(buffer.remaining() < bytes)
+			{
+				flush();
+			}
+		}
+		
+		void flush() throws IOException
+		{
+			buffer.flip();
+			while(buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+// Keeps the templates of a GestureEngine in step with the .gst files of a folder while it runs
+// A daemon thread waits on a WatchService for files being created, changed or deleted. Changes are gathered until
+// the folder has been quiet for settleMillis, so a burst (a tool copying in a whole library, an editor saving in
+// several steps) is applied once. Only the files that changed are parsed, and GestureEngine.replaceTemplates then
+// removes their old templates and adds the new ones in one step. Recognition carries on against the previous
+// snapshot meanwhile and sees the whole change at once.
+// A deleted file removes its template. A new or changed file that fails to parse (such as one still being written
+// by a tool that does not write atomically) keeps its old template, is listed in lastReport and reported to the
+// engine's listener, and is read again on its next change. A change that fails as a whole is reported the same way
+// and the watcher carries on with the next one. When the WatchService loses events every template of the folder
+// is read again.
+// Start one with GestureEngine.watchGestureFolder, and close it when done.
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TemplateFolderWatcher implements Runnable
+{
+	GestureEngine engine;
+	Path folder; // Absolute, so file paths match Gesture.sourceFile
+	long settleMillis = 200; // Quiet time that ends a burst of changes
+	WatchService watchService;
+	Thread thread;
+	volatile TemplateLoadReport lastReport; // Outcome of the last change applied, null before the first
+	
+	AtomicLong changesApplied = new AtomicLong();
+	AtomicLong filesRead = new AtomicLong();
+	AtomicLong templatesRemoved = new AtomicLong();
+	
+	TemplateFolderWatcher(GestureEngine engine, String folderPath) throws IOException
+	{
+		this.engine = engine;
+		folder = Paths.get(folderPath).toAbsolutePath().normalize();
+		watchService = folder.getFileSystem().newWatchService();
+		folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+	}
+	
+	void start()
+	{
+		thread = new Thread(this, "Gesture folder watcher " + folder);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void close()
+	{	// Stops watching. Templates loaded so far stay in the engine
+		try
+		{
+			watchService.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	public void run()
+	{
+		try
+		{
+			while(true)
+			{
+				HashSet<Path> changed = new HashSet<Path>();
+				boolean overflow = collect(watchService.take(), changed);
+				
+				WatchKey key;
+				while((key = watchService.poll(settleMillis, TimeUnit.MILLISECONDS)) != null)
+				{
+					overflow |= collect(key, changed);
+				}
+				
+				if(overflow || !changed.isEmpty())
+				{
+					try
+					{
+						apply(changed, overflow);
+					}
+					catch(RuntimeException e)
+					{	// Such as a file that parses but holds values the store can not take. Reported, and the
+						// next change is applied as usual
+						engine.report(GestureEngineListener.Event.FOLDER_RELOAD_FAILED, folder + ": change not applied, " + e);
+					}
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(ClosedWatchServiceException e)
+		{	// Closed, so stop watching
+		}
+	}
+	
+	boolean collect(WatchKey key, HashSet<Path> changed)
+	{	// Adds the .gst files named by a key's events to changed. Returns true if events were lost
+		boolean overflow = false;
+		for(WatchEvent<?> event : key.pollEvents())
+		{
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+			{
+				overflow = true;
+				continue;
+			}
+			Path file = folder.resolve((Path)event.context());
+			if(file.getFileName().toString().endsWith(".gst"))
+			{
+				changed.add(file);
+			}
+		}
+		key.reset();
+		return overflow;
+	}
+	
+	void apply(HashSet<Path> changed, boolean overflow)
+	{
+		long startTime = System.nanoTime();
+		TemplateLoadReport report = new TemplateLoadReport(folder.toString());
+		HashSet<String> removals = new HashSet<String>();
+		
+		if(overflow)
+		{	// No telling what changed, so every template of the folder goes and every file is read again
+			TemplateStore store = engine.snapshot.store;
+			for(int gt=0; gt<store.size; gt++)
+			{
+				if(store.sources[gt] != null && folder.equals(Paths.get(store.sources[gt]).getParent()))
+				{
+					removals.add(store.sources[gt]);
+				}
+			}
+			try(DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*.gst"))
+			{
+				for(Path file : files)
+				{
+					changed.add(file);
+				}
+			}
+			catch(IOException e)
+			{
+				report.failed(folder.toString(), e);
+			}
+		}
+		
+		ArrayList<Path> present = new ArrayList<Path>();
+		for(Path file : changed)
+		{
+			if(Files.isRegularFile(file))
+			{
+				present.add(file);
+			}
+			else
+			{
+				removals.add(file.toString());
+			}
+		}
+		Collections.sort(present);
+		
+		// Only files that parsed replace their templates, the others keep what they had
+		ArrayList<Gesture> parsed = engine.parseGestureFiles(present, report, false);
+		for(Gesture gesture : parsed)
+		{
+			removals.add(gesture.sourceFile);
+		}
+		int removed = engine.replaceTemplates(removals, parsed);
+		
+		report.elapsedNanos = System.nanoTime()-startTime;
+		lastReport = report;
+		changesApplied.incrementAndGet();
+		filesRead.addAndGet(present.size());
+		templatesRemoved.addAndGet(removed);
+		GestureEngineListener.Event event = report.succeeded() ? GestureEngineListener.Event.FOLDER_RELOADED : GestureEngineListener.Event.FOLDER_RELOAD_FAILED;
+		if(engine.reports(event))
+		{
+			engine.report(event, folder + ": " + parsed.size() + " templates read, " + removed + " removed\n" + report.summary());
+		}
+	}
+}
@@ -0,0 +1,27 @@
+// Optional structure that GestureEngine searches instead of scoring every stored template
+// An index picks which templates are worth scoring for a candidate and offers them to the ranking, usually
+// through TemplateSnapshot.scanTemplates so early abandoning and the snapshot's recognizer still apply.
+// Set one with GestureEngine.setTemplateIndex. Rankings aggregated by BEST_PER_CLASS always scan every template.
+// build and templatesAdded are called by the engine with its lock held, before the templates are published.
+// search runs without any lock, on other threads and at the same time as those. It reads the state the index had when
+// the snapshot was taken (TemplateSnapshot.indexState) rather than the index's current one, which may already be
+// built over another store. State added to in place may hold templates the snapshot does not have yet
+// (TemplateSnapshot.scoreTemplate passes over them), but must never renumber the ones it has.
+public interface TemplateIndex
+{
+	// Builds the index from scratch over every template in the engine's store, called when the index is set and
+	// whenever the recognizer changes
+	void build(GestureEngine engine);
+	
+	// Brings the index up to date with the templates from the given one to the end of the store, which were just
+	// added and prepared for the recognizer. A batch of templates comes in one call
+	void templatesAdded(GestureEngine engine, int from);
+	
+	// Returns the current state of the index, which the engine hands back to search through the snapshot it takes
+	// now. Called with the engine's lock held
+	Object state();
+	
+	// Offers the templates the index finds for the candidate to the ranking, which has already been reset to the
+	// number of templates wanted. Must be safe to call from several threads at once, and while the index is updated
+	void search(TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking);
+}
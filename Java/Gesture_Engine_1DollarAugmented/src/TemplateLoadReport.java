@@ -0,0 +1,58 @@
+// Outcome of loading a folder of gesture templates, file by file
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+public class TemplateLoadReport
+{
+	String folderPath;
+	ArrayList<String> loadedFiles = new ArrayList<String>();
+	LinkedHashMap<String, String> failedFiles = new LinkedHashMap<String, String>(); // File name to the reason it failed
+	long elapsedNanos;
+	
+	TemplateLoadReport(String folderPath)
+	{
+		this.folderPath = folderPath;
+	}
+	
+	public int loadedCount()
+	{
+		return loadedFiles.size();
+	}
+	
+	public int failedCount()
+	{
+		return failedFiles.size();
+	}
+	
+	public boolean succeeded()
+	{	// True if the folder could be read and every template in it was loaded
+		return failedFiles.isEmpty();
+	}
+	
+	void loaded(String fileName)
+	{
+		loadedFiles.add(fileName);
+	}
+	
+	void failed(String fileName, Throwable cause)
+	{
+		String reason = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+		failedFiles.put(fileName, reason);
+	}
+	
+	public String summary()
+	{	// Counts on the first line, then a line for each file that failed and why
+		StringBuilder summary = new StringBuilder();
+		summary.append(loadedCount() + " gestures loaded from " + folderPath + " in " + (elapsedNanos/1000000) + "ms, " + failedCount() + " failed");
+		for(String fileName : failedFiles.keySet())
+		{
+			summary.append("\n  " + fileName + ": " + failedFiles.get(fileName));
+		}
+		return summary.toString();
+	}
+	
+	public void printReport()
+	{
+		System.out.println(summary());
+	}
+}
@@ -0,0 +1,48 @@
+// Fork/join task that scores a range of the template store for one candidate
+// Ranges are split in half until they are small enough, each leaf keeps its own top k, and the halves are merged
+// on the way back up. TopKCollector orders equal distances by template index, so the merged result is the same
+// as a sequential scan no matter how the work was split or which thread finished first.
+// A range never keeps more than it holds, so with a k as large as the store (a response of every template) a leaf
+// still only allocates room for its own templates.
+import java.util.concurrent.RecursiveTask;
+
+public class TemplateScanTask extends RecursiveTask<TopKCollector>
+{
+	static final long serialVersionUID = 1L;
+	
+	TemplateSnapshot snapshot;
+	GesturePreprocessor candidate;
+	int from;
+	int to;
+	int k;
+	int leafSize;
+	
+	TemplateScanTask(TemplateSnapshot snapshot, GesturePreprocessor candidate, int from, int to, int k, int leafSize)
+	{
+		this.snapshot = snapshot;
+		this.candidate = candidate;
+		this.from = from;
+		this.to = to;
+		this.k = k;
+		this.leafSize = leafSize;
+	}
+	
+	protected TopKCollector compute()
+	{
+		if(to-from <= leafSize)
+		{
+			TopKCollector ranking = new TopKCollector(Math.min(k, to-from));
+			snapshot.scanTemplates(candidate, from, to, ranking);
+			return ranking;
+		}
+		
+		int middle = (from+to) >>> 1;
+		TemplateScanTask lower = new TemplateScanTask(snapshot, candidate, from, middle, k, leafSize);
+		TemplateScanTask upper = new TemplateScanTask(snapshot, candidate, middle, to, k, leafSize);
+		lower.fork();
+		TopKCollector ranking = upper.compute();
+		ranking.ensureCapacity(Math.min(k, to-from)); // Room for the lower half too, when both fit in k
+		ranking.merge(lower.join());
+		return ranking;
+	}
+}
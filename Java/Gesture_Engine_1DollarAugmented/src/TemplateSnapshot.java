@@ -0,0 +1,81 @@
+// The templates, recognizer and template index that one recognition runs against, as GestureEngine last published them
+// Every change to the templates, the recognizer or the index publishes a new snapshot, and a recognition reads the
+// current one once and uses it to the end. It never sees a change half made, and never has to lock anything.
+// The store is a shallow copy (see TemplateStore.snapshot) that shares its arrays with the engine's store. The
+// engine only writes past the end of a published store, and puts features for a new recognizer in new arrays,
+// so a snapshot's templates never change under it.
+// The index's state (TemplateIndex.state) is captured along with the store, so a search uses the template numbering
+// of this snapshot even after compaction or a new store has rebuilt the index. Some indexes add templates to that
+// state in place, so it may offer templates this snapshot does not have yet. scoreTemplate skips those.
+public class TemplateSnapshot
+{
+	final GestureEngine engine; // Settings such as early abandoning are read from the engine as they are
+	final TemplateStore store;
+	final Recognizer recognizer;
+	final TemplateIndex index; // null when every template is scanned
+	final Object indexState;   // What index.state returned when the snapshot was taken, null without an index
+	
+	TemplateSnapshot(GestureEngine engine, TemplateStore store, Recognizer recognizer, TemplateIndex index)
+	{	// Taken with the engine's lock held, after the index was brought up to date with the store
+		this.engine = engine;
+		this.store = store;
+		this.recognizer = recognizer;
+		this.index = index;
+		this.indexState = (index != null) ? index.state() : null;
+	}
+	
+	void scanTemplates(GesturePreprocessor candidate, int from, int to, TopKCollector ranking)
+	{	// Scores templates from (inclusive) to to (exclusive), offering each of them to the ranking
+		to = Math.min(to, store.size);
+		for(int gt=from; gt<to; gt++)
+		{
+			scoreTemplate(candidate, gt, ranking);
+		}
+	}
+	
+	void scanTemplates(GesturePreprocessor candidate, int[] templates, int count, TopKCollector ranking)
+	{	// Scores the first count templates listed, for indexes that only scan part of the store
+		for(int t=0; t<count; t++)
+		{
+			scoreTemplate(candidate, templates[t], ranking);
+		}
+	}
+	
+	void scoreTemplate(GesturePreprocessor candidate, int index, TopKCollector ranking)
+	{
+		if(index >= store.size || store.isRemoved(index))
+		{	// Added after this snapshot was published, or removed before it
+			return;
+		}
+		
+		// With early abandoning on, a template stops being scored as soon as it can no longer make the ranking
+		float bound = engine.earlyAbandon ? ranking.bound() : Float.POSITIVE_INFINITY;
+		float distance = recognizer.distance(candidate, store, index, bound);
+		ranking.scored++;
+		if(distance <= bound)
+		{
+			ranking.offer(distance, index);
+		}
+		else
+		{
+			ranking.abandoned++;
+		}
+	}
+	
+	float measureTemplate(GesturePreprocessor candidate, int index, TopKCollector ranking)
+	{	// Scores a template in full whatever the early abandoning setting and returns its distance, for indexes that
+		// steer their search by it (see VantagePointIndex). A removed template is measured but not ranked or counted
+		float distance = recognizer.distance(candidate, store, index, Float.POSITIVE_INFINITY);
+		if(!store.isRemoved(index))
+		{
+			ranking.scored++;
+			ranking.offer(distance, index);
+		}
+		return distance;
+	}
+	
+	float toScore(float distance)
+	{
+		return recognizer.toScore(store, distance);
+	}
+}
@@ -0,0 +1,286 @@
+// Packed structure-of-arrays storage for gesture templates
+// All template points are held back to back in one float array (x0,y0,x1,y1,...) so that scoring
+// walks contiguous memory instead of chasing Gesture -> ArrayList -> PVector references per point
+// Points and features are read through points/offset and features/featureOffset, and written through setPoints
+// and setFeatures, so a store that keeps them elsewhere (OffHeapTemplateStore) can stand in for this one
+// Templates are only ever appended, and arrays are replaced rather than overwritten when they grow or are cleared,
+// which lets snapshot hand out a cheap copy that keeps seeing the same templates while this store moves on
+// Removing a template only marks it as removed (see removeSources), so no other template moves. The marks are
+// dropped when the templates are moved to a new store of the same kind (newEmptyCopy, GestureEngine.compactTemplates)
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+import processing.core.*;
+
+public class TemplateStore implements Cloneable
+{
+	int resolution; // Number of points held per template
+	int stride;     // Number of floats held per template (x and y for every point)
+	int size;       // Number of templates currently stored
+	float referenceSquareLength; // Size of the square the template points were normalised to
+	
+	float[] points;           // Normalised template points, packed per template
+	String[] names;           // Gesture name of each template
+	int[] classIds;           // Index of each template's gesture name in classNames
+	Gesture[] gestures;       // Source gesture of each template, used when building responses. Made on each call when null
+	float[] indicativeAngles; // Indicative angle of each template (in radians)
+	float[] centroids;        // Centroid of each template, packed as x,y pairs
+	float[] scaleFactors;     // Scale factor of each template, packed as x,y pairs
+	float[] features;         // Precomputed data of the engine's recognizer, featureStride floats per template
+	int featureStride;
+	String[] sources;         // File each template was loaded from or saved to, null if neither (see Gesture.sourceFile)
+	boolean[] removed;        // Templates marked as removed, null until one is. Replaced rather than changed
+	int removedCount;
+	
+	ArrayList<String> classNames = new ArrayList<String>(); // Distinct gesture names, in the order they were first added
+	HashMap<String, Integer> classLookup = new HashMap<String, Integer>();
+	
+	public TemplateStore(int resolution, float referenceSquareLength)
+	{
+		this(resolution, referenceSquareLength, 16);
+	}
+	
+	public TemplateStore(int resolution, float referenceSquareLength, int initialCapacity)
+	{
+		this.resolution = resolution;
+		this.stride = resolution*2;
+		this.referenceSquareLength = referenceSquareLength;
+		
+		initialCapacity = Math.max(initialCapacity, 1);
+		points = new float[initialCapacity*stride];
+		names = new String[initialCapacity];
+		classIds = new int[initialCapacity];
+		gestures = new Gesture[initialCapacity];
+		indicativeAngles = new float[initialCapacity];
+		centroids = new float[initialCapacity*2];
+		scaleFactors = new float[initialCapacity*2];
+		features = new float[0];
+		sources = new String[initialCapacity];
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public int capacity()
+	{
+		return names.length;
+	}
+	
+	public int liveCount()
+	{	// Number of templates that have not been removed
+		return size - removedCount;
+	}
+	
+	public boolean isRemoved(int index)
+	{
+		boolean[] current = removed;
+		return current != null && current[index];
+	}
+	
+	public boolean add(Gesture gesture)
+	{	// Appends a gesture to the end of the store. Returns false if the gesture does not match the store resolution
+		if(gesture.points == null || gesture.points.size() != resolution)
+		{
+			return false;
+		}
+		
+		ensureCapacity(size+1);
+		
+		float[] packed = new float[stride];
+		for(int p=0; p<resolution; p++)
+		{
+			PVector point = gesture.points.get(p);
+			packed[p*2]     = point.x;
+			packed[p*2 + 1] = point.y;
+		}
+		setPoints(size, packed, 0);
+		
+		names[size] = gesture.gestureName;
+		classIds[size] = classId(gesture.gestureName);
+		gestures[size] = gesture;
+		sources[size] = gesture.sourceFile;
+		indicativeAngles[size] = gesture.indicativeAngle;
+		
+		if(gesture.centroid != null)
+		{
+			centroids[size*2]     = gesture.centroid.x;
+			centroids[size*2 + 1] = gesture.centroid.y;
+		}
+		
+		if(gesture.scaleFactor != null)
+		{
+			scaleFactors[size*2]     = gesture.scaleFactor[0];
+			scaleFactors[size*2 + 1] = gesture.scaleFactor[1];
+		}
+		
+		size++;
+		return true;
+	}
+	
+	public Gesture gesture(int index)
+	{	// Returns the gesture of a template, making one from the packed data if it was loaded without one (see TemplateBundle)
+		// A made gesture is not kept, as gestures is shared by every snapshot and read without the engine's lock
+		Gesture gesture = gestures[index];
+		return (gesture != null) ? gesture : new Gesture(this, index);
+	}
+	
+	public int removeSources(Set<String> sourceFiles)
+	{	// Marks every template loaded from one of the files as removed and returns how many were. The marks go into a
+		// new array, so snapshots taken before still have the templates
+		boolean[] marked = null;
+		int count = 0;
+		for(int gt=0; gt<size; gt++)
+		{
+			if(sources[gt] != null && !isRemoved(gt) && sourceFiles.contains(sources[gt]))
+			{
+				if(marked == null)
+				{
+					marked = (removed == null) ? new boolean[capacity()] : Arrays.copyOf(removed, capacity());
+				}
+				marked[gt] = true;
+				count++;
+			}
+		}
+		if(marked != null)
+		{
+			removed = marked;
+			removedCount += count;
+		}
+		return count;
+	}
+	
+	public int classCount()
+	{
+		return classNames.size();
+	}
+	
+	int classId(String gestureName)
+	{	// Returns the class index for a gesture name, registering the name if it is new
+		Integer classId = classLookup.get(gestureName);
+		if(classId == null)
+		{
+			classId = classNames.size();
+			classNames.add(gestureName);
+			classLookup.put(gestureName, classId);
+		}
+		return classId;
+	}
+	
+	public void setFeatureStride(int featureStride)
+	{	// Resizes the feature array for a recognizer. Existing features are discarded and have to be prepared again
+		this.featureStride = featureStride;
+		features = new float[capacity()*featureStride];
+	}
+	
+	public float[] points(int index)
+	{	// Returns the array holding a template's points, starting at offset(index)
+		return points;
+	}
+	
+	public int offset(int index)
+	{	// Returns the position of the first float of a template within the array returned by points
+		return index*stride;
+	}
+	
+	public void setPoints(int index, float[] source, int sourceOffset)
+	{	// Copies stride floats from source into a template's points
+		System.arraycopy(source, sourceOffset, points, index*stride, stride);
+	}
+	
+	public float[] features(int index)
+	{	// Returns the array holding a template's features, starting at featureOffset(index)
+		return features;
+	}
+	
+	public int featureOffset(int index)
+	{
+		return index*featureStride;
+	}
+	
+	public void setFeatures(int index, float[] source, int sourceOffset)
+	{	// Copies featureStride floats from source into a template's features
+		System.arraycopy(source, sourceOffset, features, index*featureStride, featureStride);
+	}
+	
+	public void clear()
+	{	// Starts again in new arrays, so snapshots taken before keep their templates
+		int capacity = capacity();
+		names = new String[capacity];
+		classIds = new int[capacity];
+		gestures = new Gesture[capacity];
+		indicativeAngles = new float[capacity];
+		centroids = new float[capacity*2];
+		scaleFactors = new float[capacity*2];
+		sources = new String[capacity];
+		removed = null;
+		removedCount = 0;
+		allocateTemplateData(capacity);
+		classNames = new ArrayList<String>();
+		classLookup = new HashMap<String, Integer>();
+		size = 0;
+	}
+	
+	public TemplateStore snapshot()
+	{	// Returns a copy of the store as it is now. It shares the arrays, as only templates past its size are written to them
+		try
+		{
+			TemplateStore copy = (TemplateStore)clone();
+			copy.classNames = new ArrayList<String>(classNames);
+			copy.classLookup = new HashMap<String, Integer>(classLookup);
+			return copy;
+		}
+		catch(CloneNotSupportedException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	TemplateStore newEmptyCopy()
+	{	// An empty store of the same kind and settings, for compaction to move the live templates into. Stores that
+		// keep their data elsewhere override this to make one of their own kind
+		return new TemplateStore(resolution, referenceSquareLength, Math.max(liveCount(), 16));
+	}
+	
+	void release()
+	{	// Called once compaction has moved the templates to another store. Snapshots may still read this one, so it
+		// is left to the garbage collector, but a store holding other resources can let go of them here
+	}
+	
+	void ensureCapacity(int requiredCapacity)
+	{
+		if(requiredCapacity <= names.length)
+		{
+			return;
+		}
+		
+		int newCapacity = Math.max(requiredCapacity, names.length*2);
+		growTemplateData(newCapacity);
+		names = Arrays.copyOf(names, newCapacity);
+		classIds = Arrays.copyOf(classIds, newCapacity);
+		gestures = Arrays.copyOf(gestures, newCapacity);
+		indicativeAngles = Arrays.copyOf(indicativeAngles, newCapacity);
+		centroids = Arrays.copyOf(centroids, newCapacity*2);
+		scaleFactors = Arrays.copyOf(scaleFactors, newCapacity*2);
+		sources = Arrays.copyOf(sources, newCapacity);
+		if(removed != null)
+		{
+			removed = Arrays.copyOf(removed, newCapacity);
+		}
+	}
+	
+	void growTemplateData(int newCapacity)
+	{	// Makes room for the points and features of newCapacity templates
+		points = Arrays.copyOf(points, newCapacity*stride);
+		features = Arrays.copyOf(features, newCapacity*featureStride);
+	}
+	
+	void allocateTemplateData(int capacity)
+	{	// Replaces the points and features with empty ones for capacity templates
+		points = new float[capacity*stride];
+		features = new float[capacity*featureStride];
+	}
+}
@@ -0,0 +1,169 @@
+// Fixed size collection of the k best (lowest distance) templates seen during a scan
+// Kept as a binary max-heap on distance so the worst kept entry is always at the root, which makes
+// it both the admission test for new entries and the bound used for early abandoning.
+// Equal distances are ordered by template index, so the result never depends on scan order.
+import java.util.Arrays;
+
+public class TopKCollector
+{
+	int capacity;
+	int size;
+	float[] distances;
+	int[] indices;
+	int scored;    // Templates scored into this ranking since it was reset, for RecognitionMetrics
+	int abandoned; // Of those, the ones abandoned early
+	int fallbackScored; // Of those, the ones a full scan scored after an index found nothing (see GestureEngine.searchIndex)
+	
+	public TopKCollector(int capacity)
+	{
+		distances = new float[Math.max(capacity, 1)];
+		indices = new int[Math.max(capacity, 1)];
+		reset(capacity);
+	}
+	
+	public void reset(int capacity)
+	{	// Empties the collector, growing its arrays if a larger capacity is needed
+		if(capacity > distances.length)
+		{
+			distances = new float[capacity];
+			indices = new int[capacity];
+		}
+		this.capacity = capacity;
+		size = 0;
+		scored = 0;
+		abandoned = 0;
+		fallbackScored = 0;
+	}
+	
+	public void ensureCapacity(int capacity)
+	{	// Raises the capacity, keeping the entries. The heap stays valid as only the room after it grows
+		if(capacity > distances.length)
+		{
+			distances = Arrays.copyOf(distances, capacity);
+			indices = Arrays.copyOf(indices, capacity);
+		}
+		this.capacity = Math.max(this.capacity, capacity);
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public float bound()
+	{	// Distance a template has to reach to still be kept. Infinite until the collector is full
+		return size < capacity ? Float.POSITIVE_INFINITY : distances[0];
+	}
+	
+	public boolean offer(float distance, int index)
+	{
+		if(capacity == 0)
+		{
+			return false;
+		}
+		
+		if(size < capacity)
+		{
+			distances[size] = distance;
+			indices[size] = index;
+			siftUp(size);
+			size++;
+			return true;
+		}
+		
+		if(!isBetter(distance, index, distances[0], indices[0]))
+		{
+			return false;
+		}
+		
+		distances[0] = distance;
+		indices[0] = index;
+		siftDown(0, size);
+		return true;
+	}
+	
+	public void merge(TopKCollector other)
+	{
+		for(int i=0; i<other.size; i++)
+		{
+			offer(other.distances[i], other.indices[i]);
+		}
+		scored += other.scored;
+		abandoned += other.abandoned;
+		fallbackScored += other.fallbackScored;
+	}
+	
+	public void sort()
+	{	// Heap sorts the kept entries in place so they run from best to worst. Offering after sorting is not allowed
+		for(int end=size-1; end>0; end--)
+		{
+			swap(0, end);
+			siftDown(0, end);
+		}
+	}
+	
+	public float distance(int rank)
+	{	// Only valid after sort()
+		return distances[rank];
+	}
+	
+	public int index(int rank)
+	{	// Only valid after sort()
+		return indices[rank];
+	}
+	
+	static boolean isBetter(float distanceA, int indexA, float distanceB, int indexB)
+	{
+		return distanceA < distanceB || (distanceA == distanceB && indexA < indexB);
+	}
+	
+	void siftUp(int position)
+	{
+		while(position > 0)
+		{
+			int parent = (position-1)/2;
+			if(!isBetter(distances[parent], indices[parent], distances[position], indices[position]))
+			{
+				break;
+			}
+			swap(parent, position);
+			position = parent;
+		}
+	}
+	
+	void siftDown(int position, int end)
+	{
+		while(true)
+		{
+			int worst = position;
+			int left = position*2 + 1;
+			int right = left + 1;
+			
+			if(left < end && isBetter(distances[worst], indices[worst], distances[left], indices[left]))
+			{
+				worst = left;
+			}
+			if(right < end && isBetter(distances[worst], indices[worst], distances[right], indices[right]))
+			{
+				worst = right;
+			}
+			if(worst == position)
+			{
+				return;
+			}
+			swap(position, worst);
+			position = worst;
+		}
+	}
+	
+	void swap(int a, int b)
+	{
+		float distance = distances[a];
+		distances[a] = distances[b];
+		distances[b] = distance;
+		
+		int index = indices[a];
+		indices[a] = indices[b];
+		indices[b] = index;
+	}
+}
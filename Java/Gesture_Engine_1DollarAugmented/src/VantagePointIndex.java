@@ -0,0 +1,251 @@
+// Vantage point tree over the stored templates, for exact top k search without scoring every template
+// Each node picks a template as its vantage point and splits the rest at the median distance from it, so the
+// inside half lies within a ball around the vantage point and the outside half beyond it. When a search knows
+// its distance to the vantage point, the triangle inequality gives the smallest distance any template of either
+// half can have, and a half that can not beat the current top k is skipped whole.
+// This needs a MetricRecognizer. With any other recognizer searches fall back to scoring every template.
+// Templates added after the tree was built are kept in a pending list that is scanned in full, and the tree is
+// built again once the list grows past rebuildFraction of the tree. Results are the same as a full scan.
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class VantagePointIndex implements TemplateIndex
+{
+	int leafSize = 16;            // Templates per leaf, scanned in full once a search reaches one
+	float rebuildFraction = 0.1f; // Pending templates, as a share of the tree, that make the tree be built again
+	float slack = 1e-3f;          // Allowance for float rounding when pruning, relative and absolute
+	
+	volatile Tree tree = new Tree();
+	
+	AtomicLong queries = new AtomicLong();
+	AtomicLong templatesScored = new AtomicLong();
+	
+	public VantagePointIndex()
+	{
+	}
+	
+	public VantagePointIndex(int leafSize)
+	{
+		this.leafSize = Math.max(leafSize, 2);
+	}
+	
+	public synchronized void build(GestureEngine engine)
+	{
+		tree = buildTree(engine);
+	}
+	
+	public synchronized void templatesAdded(GestureEngine engine, int from)
+	{
+		Tree current = tree;
+		int added = engine.templateStore.size - from;
+		if(current.pendingCount+added > Math.max(leafSize*4, current.items.length*rebuildFraction))
+		{
+			tree = buildTree(engine);
+		}
+		else
+		{
+			tree = current.withPending(from, added);
+		}
+	}
+	
+	public Object state()
+	{
+		return tree;
+	}
+	
+	public void search(TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking)
+	{
+		Tree current = (Tree)snapshot.indexState;
+		if(current.recognizer != snapshot.recognizer || !(current.recognizer instanceof MetricRecognizer))
+		{	// The tree only holds for the metric it was built with
+			snapshot.scanTemplates(candidate, 0, snapshot.store.size, ranking);
+			return;
+		}
+		
+		int scored = 0;
+		if(current.nodeCount > 0)
+		{
+			scored += searchNode(current, 0, snapshot, candidate, ranking);
+		}
+		snapshot.scanTemplates(candidate, current.pending, current.pendingCount, ranking);
+		scored += current.pendingCount;
+		
+		queries.incrementAndGet();
+		templatesScored.addAndGet(scored);
+	}
+	
+	public float averageTemplatesScored()
+	{
+		long queryCount = queries.get();
+		return queryCount == 0 ? 0 : templatesScored.get()/(float)queryCount;
+	}
+	
+	int searchNode(Tree tree, int node, TemplateSnapshot snapshot, GesturePreprocessor candidate, TopKCollector ranking)
+	{	// Searches the subtree under node and returns the number of templates scored
+		int vantage = tree.vantages[node];
+		if(vantage == -1)
+		{
+			for(int i=tree.froms[node]; i<tree.tos[node]; i++)
+			{
+				snapshot.scoreTemplate(candidate, tree.items[i], ranking);
+			}
+			return tree.tos[node]-tree.froms[node];
+		}
+		
+		// The distance to the vantage point steers the search, so it is always worked out in full. A removed template
+		// still steers the search, it is only left out of the ranking
+		float distance = snapshot.measureTemplate(candidate, vantage, ranking);
+		int scored = 1;
+		
+		if(distance < tree.radii[node])
+		{
+			if(mayHoldBetter(distance - tree.insideMax[node], distance + tree.insideMax[node], ranking))
+			{
+				scored += searchNode(tree, tree.insides[node], snapshot, candidate, ranking);
+			}
+			if(mayHoldBetter(Math.max(tree.outsideMin[node]-distance, distance-tree.outsideMax[node]), distance + tree.outsideMax[node], ranking))
+			{
+				scored += searchNode(tree, tree.outsides[node], snapshot, candidate, ranking);
+			}
+		}
+		else
+		{
+			if(mayHoldBetter(Math.max(tree.outsideMin[node]-distance, distance-tree.outsideMax[node]), distance + tree.outsideMax[node], ranking))
+			{
+				scored += searchNode(tree, tree.outsides[node], snapshot, candidate, ranking);
+			}
+			if(mayHoldBetter(distance - tree.insideMax[node], distance + tree.insideMax[node], ranking))
+			{
+				scored += searchNode(tree, tree.insides[node], snapshot, candidate, ranking);
+			}
+		}
+		return scored;
+	}
+	
+	boolean mayHoldBetter(float lowerBound, float scale, TopKCollector ranking)
+	{	// Distances are only accurate to float rounding, so the bound is given some slack in proportion to their size
+		return lowerBound <= ranking.bound() + slack*(1+scale);
+	}
+	
+	Tree buildTree(GestureEngine engine)
+	{
+		TemplateStore store = engine.templateStore;
+		Tree built = new Tree();
+		built.recognizer = engine.recognizer;
+		if(!(engine.recognizer instanceof MetricRecognizer) || store.size == 0)
+		{
+			return built;
+		}
+		
+		int size = store.size;
+		built.items = new int[size];
+		for(int gt=0; gt<size; gt++)
+		{
+			built.items[gt] = gt;
+		}
+		built.allocateNodes(size*2 + 1);
+		
+		GesturePreprocessor vantage = new GesturePreprocessor(store.resolution, store.referenceSquareLength);
+		buildNode(built, 0, size, store, engine.recognizer, vantage, new long[size], new Random(1));
+		return built;
+	}
+	
+	int buildNode(Tree tree, int from, int to, TemplateStore store, Recognizer recognizer, GesturePreprocessor vantage, long[] keys, Random random)
+	{	// Builds the subtree over items from..to and returns its node
+		int node = tree.nodeCount++;
+		if(to-from <= leafSize)
+		{
+			tree.vantages[node] = -1;
+			tree.froms[node] = from;
+			tree.tos[node] = to;
+			return node;
+		}
+		
+		// A random vantage point avoids the worst case of templates that were added in a sorted order
+		int pick = from + random.nextInt(to-from);
+		int vantageIndex = tree.items[pick];
+		tree.items[pick] = tree.items[from];
+		tree.items[from] = vantageIndex;
+		tree.vantages[node] = vantageIndex;
+		
+		vantage.load(store, vantageIndex);
+		recognizer.prepareCandidate(vantage);
+		for(int i=from+1; i<to; i++)
+		{
+			float distance = recognizer.distance(vantage, store, tree.items[i], Float.POSITIVE_INFINITY);
+			// Distances are never negative, so their float bits sort in the same order as the distances themselves
+			keys[i] = ((long)Float.floatToIntBits(distance) << 32) | tree.items[i];
+		}
+		Arrays.sort(keys, from+1, to);
+		for(int i=from+1; i<to; i++)
+		{
+			tree.items[i] = (int)keys[i];
+		}
+		
+		int middle = from+1 + (to-from-1)/2;
+		tree.radii[node]      = Float.intBitsToFloat((int)(keys[middle] >>> 32));
+		tree.insideMax[node]  = Float.intBitsToFloat((int)(keys[middle-1] >>> 32));
+		tree.outsideMin[node] = tree.radii[node];
+		tree.outsideMax[node] = Float.intBitsToFloat((int)(keys[to-1] >>> 32));
+		
+		tree.insides[node]  = buildNode(tree, from+1, middle, store, recognizer, vantage, keys, random);
+		tree.outsides[node] = buildNode(tree, middle, to, store, recognizer, vantage, keys, random);
+		return node;
+	}
+	
+	static class Tree
+	{	// One build of the tree, never changed once searches can see it apart from pending templates past pendingCount
+		Recognizer recognizer; // Recognizer the distances were measured with
+		int[] items = new int[0]; // Template indices in tree order, each leaf covers a range of them
+		int nodeCount;
+		int[] vantages; // Vantage template of each node, -1 for leaves
+		float[] radii;  // Median distance from the vantage point, where the inside and outside halves split
+		float[] insideMax;
+		float[] outsideMin;
+		float[] outsideMax;
+		int[] insides;
+		int[] outsides;
+		int[] froms; // Range of items covered by a leaf
+		int[] tos;
+		int[] pending = new int[16]; // Templates added since the tree was built
+		int pendingCount;
+		
+		void allocateNodes(int capacity)
+		{
+			vantages = new int[capacity];
+			radii = new float[capacity];
+			insideMax = new float[capacity];
+			outsideMin = new float[capacity];
+			outsideMax = new float[capacity];
+			insides = new int[capacity];
+			outsides = new int[capacity];
+			froms = new int[capacity];
+			tos = new int[capacity];
+		}
+		
+		Tree withPending(int from, int count)
+		{	// Shares everything but the pending count, so searches holding this tree are not affected by the new templates
+			Tree next = new Tree();
+			next.recognizer = recognizer;
+			next.items = items;
+			next.nodeCount = nodeCount;
+			next.vantages = vantages;
+			next.radii = radii;
+			next.insideMax = insideMax;
+			next.outsideMin = outsideMin;
+			next.outsideMax = outsideMax;
+			next.insides = insides;
+			next.outsides = outsides;
+			next.froms = froms;
+			next.tos = tos;
+			next.pending = (pendingCount+count > pending.length) ? Arrays.copyOf(pending, Math.max(pendingCount*2, pendingCount+count)) : pending;
+			for(int i=0; i<count; i++)
+			{
+				next.pending[pendingCount+i] = from+i;
+			}
+			next.pendingCount = pendingCount+count;
+			return next;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+// The $1 path distance, summed in independent lanes so the CPU (and the JIT compiler) can work on several points at once
+// PathDistanceRecognizer adds one PApplet.dist at a time to a single sum, so every addition waits for the one
+// before it. Here each group of LANES consecutive points is worked out without branches or calls, and each point's
+// distance goes into a partial sum of its own, so the square roots and additions of a group are independent of
+// one another. HotSpot can overlap them or pack them into SIMD instructions where the CPU has them. The
+// jdk.incubator.vector API would make that explicit, but it needs a far newer Java than this code base targets,
+// and this loop runs as plain scalar code on any JVM.
+// The lanes change the order of the additions, so distances differ from PathDistanceRecognizer in the last bits
+// of the float and templates at nearly equal distances may swap places. Early abandoning is coarser as well,
+// checking the bound once per block. Templates are read straight from the store, with no extra features.
+// DistanceKernelBenchmark compares the two.
+import processing.core.*;
+
+public class VectorizedPathRecognizer implements MetricRecognizer
+{
+	static final int BLOCK_SIZE = 16; // Points whose distances are added up before the bound is checked
+	static final int LANES = 4;       // Partial sums, one for each point of a group
+	
+	public int featureStride(TemplateStore store)
+	{	// Scores straight from the normalised points, so no extra features are needed
+		return 0;
+	}
+	
+	public void prepareTemplate(TemplateStore store, int index)
+	{
+	}
+	
+	public void prepareCandidate(GesturePreprocessor candidate)
+	{
+	}
+	
+	public float distance(GesturePreprocessor candidate, TemplateStore store, int index, float bound)
+	{
+		return pathDistance(candidate.points, store.points(index), store.offset(index), store.resolution, bound);
+	}
+	
+	public float toScore(TemplateStore store, float distance)
+	{	// Same score as PathDistanceRecognizer
+		float avgDistance = distance/store.resolution;
+		return (1-(avgDistance/(0.5f*PApplet.dist(0f,0f,store.referenceSquareLength,store.referenceSquareLength))))*100f;
+	}
+	
+	static float pathDistance(float[] candidatePoints, float[] templatePoints, int offset, int resolution, float bound)
+	{	// Both hold resolution x,y pairs. Stops after the first block that takes the sum past bound and returns the partial sum
+		float lane0 = 0;
+		float lane1 = 0;
+		float lane2 = 0;
+		float lane3 = 0;
+		for(int blockStart=0; blockStart<resolution; blockStart+=BLOCK_SIZE)
+		{
+			int blockEnd = Math.min(blockStart+BLOCK_SIZE, resolution);
+			int p = blockStart;
+			for(; p+LANES<=blockEnd; p+=LANES)
+			{
+				lane0 += pointDistance(candidatePoints, templatePoints, p*2, offset + p*2);
+				lane1 += pointDistance(candidatePoints, templatePoints, p*2 + 2, offset + p*2 + 2);
+				lane2 += pointDistance(candidatePoints, templatePoints, p*2 + 4, offset + p*2 + 4);
+				lane3 += pointDistance(candidatePoints, templatePoints, p*2 + 6, offset + p*2 + 6);
+			}
+			for(; p<blockEnd; p++)
+			{	// Left over points when the resolution is not a multiple of LANES
+				lane0 += pointDistance(candidatePoints, templatePoints, p*2, offset + p*2);
+			}
+			
+			float distanceSum = (lane0+lane1) + (lane2+lane3);
+			if(distanceSum > bound)
+			{
+				return distanceSum;
+			}
+		}
+		return (lane0+lane1) + (lane2+lane3);
+	}
+	
+	static float pointDistance(float[] candidatePoints, float[] templatePoints, int candidateIndex, int templateIndex)
+	{
+		float dx = candidatePoints[candidateIndex] - templatePoints[templateIndex];
+		float dy = candidatePoints[candidateIndex+1] - templatePoints[templateIndex+1];
+		return (float)Math.sqrt(dx*dx + dy*dy);
+	}
+}